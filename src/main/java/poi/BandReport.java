@@ -0,0 +1,325 @@
+package poi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * 分组报表：由 表头、明细、分组小计、总计 四种区域(模板行)组成
+ * 对已按分组字段排序的数据只遍历一次，边遍历边计算小计/总计，各组的纵向单元格在输出结束时一次性合并，
+ * 内存占用与分组大小无关
+ * @author xhc
+ *
+ */
+public class BandReport {
+
+	/**
+	 * 	统计类型
+	 * @author xhc
+	 *
+	 */
+	public static enum AggregateType{
+		SUM,COUNT,AVG,MIN,MAX
+	}
+
+	/**
+	 * 	统计项：对 field 进行 type 统计，结果以 key 放入小计/总计的数据里
+	 * @author xhc
+	 *
+	 */
+	public static class Aggregate{
+		private final AggregateType type;
+		private final String field;
+		private final String key;
+
+		public Aggregate(AggregateType type,String field,String key) {
+			this.type=type;
+			this.field=field;
+			this.key=key;
+		}
+
+		public AggregateType getType() {
+			return type;
+		}
+
+		public String getField() {
+			return field;
+		}
+
+		public String getKey() {
+			return key;
+		}
+	}
+
+	/**
+	 * 	统计的中间结果
+	 */
+	private static class Accumulator{
+		private long count;
+		private long valueCount;
+		private double sum;
+		private double min;
+		private double max;
+
+		void reset() {
+			count=0;
+			valueCount=0;
+			sum=0;
+			min=0;
+			max=0;
+		}
+
+		void add(Object value) {
+			count++;
+			if(!(value instanceof Number)) return;
+			double d = ((Number)value).doubleValue();
+			if(valueCount==0) {
+				min=d;
+				max=d;
+			}else {
+				min=Math.min(min, d);
+				max=Math.max(max, d);
+			}
+			sum+=d;
+			valueCount++;
+		}
+
+		Object get(AggregateType type) {
+			switch (type) {
+				case COUNT:
+					return count;
+				case SUM:
+					return sum;
+				case AVG:
+					return valueCount==0?null:sum/valueCount;
+				case MIN:
+					return valueCount==0?null:min;
+				case MAX:
+					return valueCount==0?null:max;
+			}
+			return null;
+		}
+	}
+
+	private final ExcelOperate operate;
+
+	private int[] headerRows=new int[0];
+
+	private int detailRow=-1;
+
+	private int groupFooterRow=-1;
+
+	private int[] summaryRows=new int[0];
+
+	private String[] groupFields=new String[0];
+
+	private int[] mergeColumns=new int[0];
+
+	private final List<Aggregate> aggregates=new ArrayList<Aggregate>();
+	public BandReport(ExcelOperate operate) {
+		this.operate=operate;
+	}
+
+	/**
+	 * 	表头区域的模板行，开始时输出一次
+	 */
+	public BandReport setHeaderRows(int... headerRows) {
+		this.headerRows=headerRows;
+		return this;
+	}
+
+	/**
+	 * 	明细区域的模板行，每条数据输出一次
+	 */
+	public BandReport setDetailRow(int detailRow) {
+		this.detailRow=detailRow;
+		return this;
+	}
+
+	/**
+	 * 	分组小计区域的模板行，每组结束时输出一次，-1为不输出
+	 */
+	public BandReport setGroupFooterRow(int groupFooterRow) {
+		this.groupFooterRow=groupFooterRow;
+		return this;
+	}
+
+	/**
+	 * 	总计区域的模板行，结束时输出一次
+	 */
+	public BandReport setSummaryRows(int... summaryRows) {
+		this.summaryRows=summaryRows;
+		return this;
+	}
+
+	/**
+	 * 	分组字段，数据需已按这些字段排序
+	 */
+	public BandReport setGroupFields(String... groupFields) {
+		this.groupFields=groupFields;
+		return this;
+	}
+
+	/**
+	 * 	明细区域中需要按组纵向合并的列(列的模板单元格不能是合并单元格)
+	 */
+	public BandReport setMergeColumns(int... mergeColumns) {
+		this.mergeColumns=mergeColumns;
+		return this;
+	}
+
+	public BandReport addAggregate(AggregateType type,String field,String key) {
+		aggregates.add(new Aggregate(type, field, key));
+		return this;
+	}
+
+	/**
+	 * 	输出报表
+	 * @param data 已按分组字段排序的数据
+	 * @return 明细的条数
+	 */
+	public int render(Iterator<Map<String,Object>> data) {
+		return render(data,null);
+	}
+
+	/**
+	 * 	输出报表
+	 * @param data 已按分组字段排序的数据
+	 * @param params 表头、小计、总计共用的数据，可以为null
+	 * @return 明细的条数
+	 */
+	public int render(Iterator<Map<String,Object>> data,Map<String,Object> params) {
+		if(detailRow<0) {
+			throw new IllegalStateException("未设置明细区域的模板行");
+		}
+		for(int col:mergeColumns) {
+			if(operate.getMergedRegionIndex(operate.getModuleSheet(), detailRow, col)!=-1) {
+				throw new IllegalArgumentException("纵向合并的列不能是合并单元格:"+col);
+			}
+		}
+		int aggregateSize = aggregates.size();
+		Accumulator[] groupTotals=new Accumulator[aggregateSize];
+		Accumulator[] grandTotals=new Accumulator[aggregateSize];
+		for(int i=0;i<aggregateSize;i++) {
+			groupTotals[i]=new Accumulator();
+			grandTotals[i]=new Accumulator();
+		}
+		Map<String,Object> bandData=new HashMap<String, Object>();
+		//各组的纵向合并在最后一次性写入，逐个添加时之后复制每个单元格都要扫描全部合并单元格
+		MergedRegionBatch groupMerges=operate.createMergedRegionBatch();
+
+		for(int row:headerRows) {
+			operate.appendCopyRow(row, fillBandData(bandData, params, null, null));
+		}
+
+		Object[] groupValues=null;
+		Object[] values=new Object[groupFields.length];
+		int groupFirstRow=-1;
+		int count=0;
+		while(data.hasNext()) {
+			Map<String,Object> record = data.next();
+			for(int i=0;i<groupFields.length;i++) {
+				values[i]=record.get(groupFields[i]);
+			}
+			boolean sameGroup = groupValues!=null && sameValues(groupValues, values);
+			if(groupValues!=null && !sameGroup) {
+				endGroup(groupFirstRow, groupValues, groupTotals, groupMerges, bandData, params);
+			}
+			if(!sameGroup) {
+				if(groupValues==null) groupValues=new Object[groupFields.length];
+				System.arraycopy(values, 0, groupValues, 0, values.length);
+				groupFirstRow=operate.getNextAppendRow();
+			}
+
+			int blockFirstRow = operate.getNextAppendRow();
+			operate.appendCopyRow(detailRow, record);
+			if(sameGroup) {
+				clearMergeColumns(blockFirstRow, operate.getNextAppendRow()-1);
+			}
+			for(int i=0;i<aggregateSize;i++) {
+				Object value = record.get(aggregates.get(i).getField());
+				groupTotals[i].add(value);
+				grandTotals[i].add(value);
+			}
+			count++;
+		}
+		if(groupValues!=null) {
+			endGroup(groupFirstRow, groupValues, groupTotals, groupMerges, bandData, params);
+		}
+
+		for(int row:summaryRows) {
+			operate.appendCopyRow(row, fillBandData(bandData, params, null, grandTotals));
+		}
+		groupMerges.commit();
+		return count;
+	}
+
+	/**
+	 * 	一组结束：记录纵向合并，输出小计，重置小计
+	 */
+	private void endGroup(int groupFirstRow,Object[] groupValues,Accumulator[] groupTotals,MergedRegionBatch groupMerges,Map<String,Object> bandData,Map<String,Object> params) {
+		int groupLastRow = operate.getNextAppendRow()-1;
+		if(groupLastRow>groupFirstRow) {
+			for(int col:mergeColumns) {
+				groupMerges.add(new CellRangeAddress(groupFirstRow, groupLastRow, col, col));
+			}
+		}
+		if(groupFooterRow>=0) {
+			operate.appendCopyRow(groupFooterRow, fillBandData(bandData, params, groupValues, groupTotals));
+		}
+		for(Accumulator accumulator:groupTotals) {
+			accumulator.reset();
+		}
+	}
+
+	/**
+	 * 	同组非第一条明细：清空需要合并的列的值，只保留样式
+	 */
+	private void clearMergeColumns(int firstRow,int lastRow) {
+		if(mergeColumns.length==0) return;
+		Sheet targetSheet = operate.getTargetSheet();
+		for(int y=firstRow;y<=lastRow;y++) {
+			Row row = targetSheet.getRow(y);
+			if(row==null) continue;
+			for(int col:mergeColumns) {
+				Cell cell = row.getCell(col);
+				if(cell!=null) cell.setCellType(Cell.CELL_TYPE_BLANK);
+			}
+		}
+	}
+
+	private Map<String,Object> fillBandData(Map<String,Object> bandData,Map<String,Object> params,Object[] groupValues,Accumulator[] totals) {
+		bandData.clear();
+		if(params!=null) {
+			bandData.putAll(params);
+		}
+		if(groupValues!=null) {
+			for(int i=0;i<groupFields.length;i++) {
+				bandData.put(groupFields[i], groupValues[i]);
+			}
+		}
+		if(totals!=null) {
+			for(int i=0;i<totals.length;i++) {
+				Aggregate aggregate = aggregates.get(i);
+				bandData.put(aggregate.getKey(), totals[i].get(aggregate.getType()));
+			}
+		}
+		return bandData;
+	}
+
+	private static boolean sameValues(Object[] a,Object[] b) {
+		for(int i=0;i<a.length;i++) {
+			if(a[i]==null ? b[i]!=null : !a[i].equals(b[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,287 @@
+package poi;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Cell;
+
+import poi.TemplatePlan.CellPlan;
+import poi.TemplatePlan.RowPlan;
+
+/**
+ * 使用与 ExcelOperate 相同的模板行和 #key# 占位符，直接输出 CSV/TSV 等分隔文本，不创建Workbook
+ * 输出内容先写入复用的缓冲区，满了再写入Writer
+ * @author xhc
+ *
+ */
+public class DelimitedTextWriter {
+
+	public final static char CSV=',';
+
+	public final static char TSV='\t';
+
+	/**
+	 * 缓冲区达到该长度时写入Writer
+	 */
+	private static final int FLUSH_SIZE=8192;
+
+	/**
+	 * 	合并单元格除左上角以外的单元格的输出方式
+	 * @author xhc
+	 *
+	 */
+	public static enum MergedMode{
+		/**
+		 * 重复左上角单元格的值
+		 */
+		REPEAT,
+		/**
+		 * 留空
+		 */
+		BLANK
+	}
+
+	private final TemplatePlan plan;
+
+	private final Writer writer;
+
+	private char delimiter=CSV;
+
+	private String lineSeparator="\r\n";
+
+	private MergedMode mergedMode=MergedMode.BLANK;
+
+	private final StringBuilder buffer=new StringBuilder(FLUSH_SIZE*2);
+
+	private char[] chars=new char[FLUSH_SIZE*2];
+
+	private long rowCount;
+
+	private RenderMonitor renderMonitor;
+
+	public DelimitedTextWriter(TemplatePlan plan,Writer writer) {
+		this.plan=plan;
+		this.writer=writer;
+	}
+
+	public DelimitedTextWriter(ExcelTemplate template,Writer writer) throws IOException {
+		this(template.getPlan(),writer);
+	}
+
+	/**
+	 * 	输出到Channel
+	 * @param plan
+	 * @param channel
+	 * @param charsetName
+	 */
+	public DelimitedTextWriter(TemplatePlan plan,WritableByteChannel channel,String charsetName) {
+		this(plan,Channels.newWriter(channel, charsetName));
+	}
+
+	public DelimitedTextWriter setDelimiter(char delimiter) {
+		this.delimiter=delimiter;
+		return this;
+	}
+
+	public DelimitedTextWriter setLineSeparator(String lineSeparator) {
+		this.lineSeparator=lineSeparator;
+		return this;
+	}
+
+	public DelimitedTextWriter setMergedMode(MergedMode mergedMode) {
+		this.mergedMode=mergedMode;
+		return this;
+	}
+
+	/**
+	 * 	设置后每输出一个模板行块检查是否被取消或超时，被取消时抛出 RenderCancelledException
+	 */
+	public DelimitedTextWriter setRenderMonitor(RenderMonitor renderMonitor) {
+		this.renderMonitor=renderMonitor;
+		return this;
+	}
+
+	/**
+	 * 	已输出的行数
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * 	追加输出模板行(同 ExcelOperate.appendCopyRow)
+	 * @param originRow
+	 * @throws IOException
+	 */
+	public void appendRow(int originRow) throws IOException {
+		appendRow(originRow,null);
+	}
+
+	/**
+	 * 	追加输出模板行(同 ExcelOperate.appendCopyRow)，该行包含合并单元格时输出合并单元格所占的全部行
+	 * @param originRow
+	 * @param data
+	 * @throws IOException
+	 */
+	public void appendRow(int originRow,Map<String,Object> data) throws IOException {
+		if(renderMonitor!=null) renderMonitor.check();
+		int[] coordinate = plan.getRowContainsMerged(originRow);
+		for(int rowY=coordinate[1];rowY<=coordinate[3];rowY++) {
+			int lastColumn = plan.getLastColumn(rowY);
+			for(int colX=0;colX<=lastColumn;colX++) {
+				if(colX>0) buffer.append(delimiter);
+				appendValue(getValue(rowY, colX, data));
+			}
+			buffer.append(lineSeparator);
+			rowCount++;
+			if(buffer.length()>=FLUSH_SIZE) {
+				flushBuffer();
+			}
+		}
+		if(renderMonitor!=null) renderMonitor.rowsWritten(coordinate[3]-coordinate[1]+1);
+	}
+
+	/**
+	 * 	将缓冲区写入Writer并flush
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		writer.flush();
+	}
+
+	/**
+	 * 	flush后关闭Writer
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		flush();
+		writer.close();
+		if(renderMonitor!=null) renderMonitor.finish();
+	}
+
+	private void flushBuffer() throws IOException {
+		int length = buffer.length();
+		if(length==0) return;
+		if(chars.length<length) {
+			chars=new char[length];
+		}
+		buffer.getChars(0, length, chars, 0);
+		writer.write(chars, 0, length);
+		buffer.setLength(0);
+	}
+
+	/**
+	 * 	获取模板单元格输出的值，与 ExcelOperate 的取值规则一致
+	 */
+	private Object getValue(int row,int col,Map<String,Object> data) {
+		int mergedRegionIndex = plan.getMergedRegionIndex(row, col);
+		if(mergedRegionIndex!=-1) {
+			int[] region = plan.getMergedRegionBounds(mergedRegionIndex);
+			if((row!=region[0] || col!=region[2]) && mergedMode==MergedMode.BLANK) {
+				return null;
+			}
+			CellPlan firstCell = getCellPlan(region[0], region[2]);
+			if(firstCell==null) return null;
+			Object value = ExcelOperate.resolveMergedValue(firstCell.getValue(), firstCell.getAllKey(), data);
+			if(data!=null && value!=null) {
+				return value;
+			}
+			return literal(firstCell);
+		}
+		CellPlan cell = getCellPlan(row, col);
+		if(cell==null) return null;
+		if(data!=null && cell.getKey()!=null) {
+			return data.get(cell.getKey());
+		}
+		return literal(cell);
+	}
+
+	private CellPlan getCellPlan(int row,int col) {
+		RowPlan rowPlan = plan.getRow(row);
+		return rowPlan==null?null:rowPlan.getCell(col);
+	}
+
+	/**
+	 * 	模板单元格本身的值
+	 */
+	private static Object literal(CellPlan cell) {
+		switch (cell.getCellType()) {
+			case Cell.CELL_TYPE_NUMERIC:
+				return Double.valueOf(cell.getValue());
+			case Cell.CELL_TYPE_BOOLEAN:
+				return Boolean.valueOf(cell.getValue());
+			case Cell.CELL_TYPE_FORMULA:
+				return "="+cell.getValue();
+			case Cell.CELL_TYPE_STRING:
+				return cell.getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * 	将值写入缓冲区，必要时加引号
+	 */
+	private void appendValue(Object value) {
+		if(value instanceof String) {
+			String text=(String)value;
+			if(needQuote(text)) {
+				buffer.append('"');
+				for(int i=0;i<text.length();i++) {
+					char c = text.charAt(i);
+					if(c=='"') buffer.append('"');
+					buffer.append(c);
+				}
+				buffer.append('"');
+			}else {
+				buffer.append(text);
+			}
+		}else if(value instanceof Number) {
+			appendNumber((Number)value);
+		}else if(value instanceof Boolean) {
+			buffer.append(((Boolean)value).booleanValue()?"TRUE":"FALSE");
+		}
+	}
+
+	/**
+	 * 	整数类型和BigDecimal/BigInteger按原值输出，不经过double(避免长ID、金额丢失精度)，
+	 * 	其它数值同 appendNumber(double)
+	 */
+	private void appendNumber(Number number) {
+		if(number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+			buffer.append(number.longValue());
+		}else if(number instanceof BigDecimal) {
+			buffer.append(((BigDecimal)number).toPlainString());
+		}else if(number instanceof BigInteger) {
+			buffer.append(number.toString());
+		}else {
+			appendNumber(number.doubleValue());
+		}
+	}
+
+	/**
+	 * 	整数不输出小数部分(同Excel的常规格式)
+	 */
+	private void appendNumber(double d) {
+		if(d==Math.rint(d) && Math.abs(d)<1e15) {
+			buffer.append((long)d);
+		}else {
+			buffer.append(d);
+		}
+	}
+
+	private boolean needQuote(String text) {
+		for(int i=0;i<text.length();i++) {
+			char c = text.charAt(i);
+			if(c==delimiter || c=='"' || c=='\r' || c=='\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -7,13 +7,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,10 +28,15 @@ import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.model.SharedStringsTable;
 import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
 import org.apache.poi.xssf.usermodel.extensions.XSSFCellFill;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
 
 /**
  * Excel 操作工具类
@@ -71,6 +74,35 @@ public class ExcelOperate {
 	
 	private Drawing drawing;
 	
+	/**
+	 * 模板的解析结果，用于快速查找源Sheet的合并单元格
+	 */
+	private TemplatePlan plan;
+	
+	/**
+	 * 从缓存借出模板Workbook时的模板，release时归还
+	 */
+	private ExcelTemplate template;
+	
+	/**
+	 * XLSX字符串的写入方式
+	 */
+	private StringStrategy stringStrategy=StringStrategy.SHARED;
+	
+	/**
+	 * 已写入共享字符串表的字符串及其下标
+	 */
+	private Map<String,String> sharedStringIndex=new HashMap<String, String>();
+	
+	/**
+	 * 输出的进度、取消和截止时间，可以为null
+	 */
+	private RenderMonitor renderMonitor;
+	
+	private final static Pattern KEY_PATTERN=Pattern.compile("#(.+)#");
+	
+	private final static Pattern ALL_KEY_PATTERN=Pattern.compile("(#.+?#)");
+	
 	/**
 	 * 	枚举Excel文件的类型
 	 * @author xhc
@@ -87,6 +119,26 @@ public class ExcelOperate {
 		}
 	}
 	
+	/**
+	 * 	XLSX字符串的写入方式(XLS不受影响)
+	 * @author xhc
+	 *
+	 */
+	public static enum StringStrategy{
+		/**
+		 * POI默认方式，每次写入都在共享字符串表里查找
+		 */
+		SHARED,
+		/**
+		 * 全部写入共享字符串表，已写入的字符串直接使用缓存的下标
+		 */
+		INTERNED,
+		/**
+		 * 模板固定文本同 INTERNED，数据里的字符串写为单元格内联字符串，不进入共享字符串表(适合重复少的数据列)
+		 */
+		INLINE_DATA
+	}
+	
 	public ExcelOperate(String modelPath,Workbook targetWorkBook,ExcelSuffix suffix) {
 		try {
 			init(modelPath,targetWorkBook,suffix);
@@ -99,6 +151,51 @@ public class ExcelOperate {
 		}
 	}
 	
+	/**
+	 * 	使用缓存的模板，模板Workbook从缓存借出，用完后调用 release 归还
+	 * @param template
+	 * @param targetWorkBook
+	 * @throws IOException
+	 */
+	public ExcelOperate(ExcelTemplate template,Workbook targetWorkBook) throws IOException {
+		this.template=template;
+		this.plan=template.getPlan();
+		init(template.borrowWorkbook(),targetWorkBook,template.getSuffix());
+	}
+	
+	/**
+	 * 	使用进程内共享的模板缓存(ExcelTemplateCache.getDefault())
+	 * @param modelPath
+	 * @param targetWorkBook
+	 * @param suffix
+	 * @return
+	 * @throws IOException
+	 */
+	public static ExcelOperate fromCache(String modelPath,Workbook targetWorkBook,ExcelSuffix suffix) throws IOException {
+		return new ExcelOperate(ExcelTemplateCache.getDefault().getTemplate(modelPath, suffix),targetWorkBook);
+	}
+	
+	public StringStrategy getStringStrategy() {
+		return stringStrategy;
+	}
+	
+	public void setStringStrategy(StringStrategy stringStrategy) {
+		this.stringStrategy=stringStrategy;
+	}
+	
+	public RenderMonitor getRenderMonitor() {
+		return renderMonitor;
+	}
+	
+	/**
+	 * 	设置后每复制一个模板行块、以及write序列化时检查是否被取消或超时，
+	 * 	被取消时归还模板、清空缓存并删除目标Sheet，然后抛出 RenderCancelledException
+	 * @param renderMonitor
+	 */
+	public void setRenderMonitor(RenderMonitor renderMonitor) {
+		this.renderMonitor=renderMonitor;
+	}
+	
 	public Sheet getModuleSheet() {
 		return this.sheet;
 	}
@@ -107,13 +204,70 @@ public class ExcelOperate {
 		return this.targetSheet;
 	}
 	
+	/**
+	 * 	将借出的模板Workbook归还到缓存，之后不能再复制行
+	 */
+	public void release() {
+		if(template!=null && workbook!=null) {
+			template.returnWorkbook(workbook);
+		}
+		workbook=null;
+		sheet=null;
+	}
+	
+	/**
+	 * 	检查是否被取消或超时，rows大于0时先记录本块输出的行数
+	 * @param rows
+	 */
+	void checkRender(int rows) {
+		if(renderMonitor==null) return;
+		try {
+			if(rows>0) {
+				renderMonitor.rowsWritten(rows);
+			}else {
+				renderMonitor.check();
+			}
+		} catch (RenderCancelledException e) {
+			abort();
+			throw e;
+		}
+	}
+	
+	/**
+	 * 	输出被取消：归还模板Workbook，清空缓存，删除目标Sheet以尽快释放内存
+	 */
+	private void abort() {
+		release();
+		cellStyleMap.clear();
+		sharedStringIndex.clear();
+		drawing=null;
+		if(targetSheet!=null) {
+			int index = targetWorkBook.getSheetIndex(targetSheet);
+			if(index!=-1) targetWorkBook.removeSheetAt(index);
+			targetSheet=null;
+		}
+	}
+	
 	private void init(String modelPath,Workbook targetWorkBook,ExcelSuffix suffix) throws FileNotFoundException, IOException {
-		if(suffix.getSuffix().equals("XLS")) {
-			this.workbook=new HSSFWorkbook(POIFSFileSystem.createNonClosingInputStream(new FileInputStream(modelPath)));
-			this.targetWorkBook=targetWorkBook;
-		}else if(suffix.getSuffix().equals("XLSX")) {
-			this.workbook=new XSSFWorkbook(POIFSFileSystem.createNonClosingInputStream(new FileInputStream(modelPath)));
-			this.targetWorkBook=targetWorkBook;
+		Workbook workbook=null;
+		InputStream is=new FileInputStream(modelPath);
+		try {
+			if(suffix.getSuffix().equals("XLS")) {
+				workbook=new HSSFWorkbook(POIFSFileSystem.createNonClosingInputStream(is));
+			}else if(suffix.getSuffix().equals("XLSX")) {
+				workbook=new XSSFWorkbook(POIFSFileSystem.createNonClosingInputStream(is));
+			}
+		}finally {
+			is.close();
+		}
+		init(workbook,targetWorkBook,suffix);
+		this.plan=TemplatePlan.compile(this.sheet);
+	}
+	
+	private void init(Workbook workbook,Workbook targetWorkBook,ExcelSuffix suffix) {
+		this.workbook=workbook;
+		this.targetWorkBook=targetWorkBook;
+		if(suffix.getSuffix().equals("XLSX")) {
 			
 			//复制样式
 			StylesTable stylesSource = ((XSSFWorkbook)(this.workbook)).getStylesSource();
@@ -176,11 +330,11 @@ public class ExcelOperate {
 	 * @param data
 	 */
 	public void appendCopyRow(int originRow,Map<String,Object> data) {
+		checkRender(0);
 		int[] coordinate = getRowContainsMerged(originRow);
 		
 		//获取目标单元格最后一行(基准新行)
-		int lastRowNum = targetSheet.getLastRowNum();
-		if(lastRowNum>0) lastRowNum++;
+		int lastRowNum = getNextAppendRow();
 		//循环行的范围，进行复制
 		for(int rowY=coordinate[1];rowY<=coordinate[3];rowY++,lastRowNum++) {
 			Row row = sheet.getRow(rowY);
@@ -207,20 +361,7 @@ public class ExcelOperate {
 						Cell firstCell = getCell(mergedRegion.getFirstRow(),mergedRegion.getFirstColumn());
 						//设置单元格的值
 						String cellValue = getCellValue(firstCell);
-						String[] allKey = getAllKey(cellValue);
-						Object value=null;
-						for(String str:allKey) {
-							String key=getPattermKey(str);
-							Object object = data.get(key);
-							if((allKey.length>1 || cellValue.length()>str.length()) && (value==null || value instanceof String)) {
-								if(value==null) {
-									value=cellValue;
-								}
-								value=value.toString().replace(str, object.toString());
-							}else {
-								value=object;
-							}
-						}
+						Object value = resolveMergedValue(cellValue, getAllKey(cellValue), data);
 						if(data!=null && value!=null) {
 							setCellValue(tCell, value);
 						}else{
@@ -241,7 +382,7 @@ public class ExcelOperate {
 						if(tRow==null) tRow=targetSheet.createRow(lastRowNum);
 						Cell tCell = tRow.getCell(colX);
 						if(tCell==null) tCell = tRow.createCell(colX);
-						getOrPutCellStyleMap(cell.getCellStyle());
+						getOrPutCellStyleMap(getCellStyle(cell));
 						tCell.setCellStyle(newCellStyle);
 						if(data!=null && value!=null) {
 							setCellValue(tCell,data.get(value) );
@@ -257,6 +398,16 @@ public class ExcelOperate {
 				}
 			}
 		}
+		checkRender(coordinate[3]-coordinate[1]+1);
+	}
+	
+	/**
+	 * 	获取目标Sheet下一次追加复制行的起始行(目标Sheet为空时为0)
+	 * @return
+	 */
+	public int getNextAppendRow() {
+		if(targetSheet.getPhysicalNumberOfRows()==0) return 0;
+		return targetSheet.getLastRowNum()+1;
 	}
 	
 	/**
@@ -276,6 +427,7 @@ public class ExcelOperate {
 	 * @param data
 	 */
 	public void copyRow(int originRow,int targetRow,Map<String,Object> data) {
+		checkRender(0);
 		int[] coordinate = getRowContainsMerged(originRow);
 		//如果目标Sheet已经包含了合并单元格，则进行忽略return
 		if(isRowContainsMerged(targetSheet,targetRow)) return;
@@ -323,20 +475,7 @@ public class ExcelOperate {
 						Cell firstCell = getCell(mergedRegion.getFirstRow(),mergedRegion.getFirstColumn());
 						//设置单元格的值
 						String cellValue = getCellValue(firstCell);
-						String[] allKey = getAllKey(cellValue);
-						Object value=null;
-						for(String str:allKey) {
-							String key=getPattermKey(str);
-							Object object = data.get(key);
-							if((allKey.length>1 || cellValue.length()>str.length()) && (value==null || value instanceof String)) {
-								if(value==null) {
-									value=cellValue;
-								}
-								value=value.toString().replace(str, object.toString());
-							}else {
-								value=object;
-							}
-						}
+						Object value = resolveMergedValue(cellValue, getAllKey(cellValue), data);
 						if(data!=null && value!=null) {
 							setCellValue(tCell, value);
 						}else{
@@ -357,7 +496,7 @@ public class ExcelOperate {
 						if(tRow==null) tRow=targetSheet.createRow(lastRowNum);
 						Cell tCell = tRow.getCell(colX);
 						if(tCell==null) tCell = tRow.createCell(colX);
-						getOrPutCellStyleMap(cell.getCellStyle());
+						getOrPutCellStyleMap(getCellStyle(cell));
 						tCell.setCellStyle(newCellStyle);
 						if(data!=null && value!=null) {
 							setCellValue(tCell,data.get(value) );
@@ -373,6 +512,7 @@ public class ExcelOperate {
 				}
 			}
 		}
+		checkRender(coordinate[3]-coordinate[1]+1);
 	}
 	
 	/**
@@ -381,9 +521,17 @@ public class ExcelOperate {
 	 * @return
 	 */
 	private String[] getAllKey(String value) {
+		return allKeys(value);
+	}
+	
+	/**
+	 *	获取value中的全部key,返回String数组
+	 * @param value
+	 * @return
+	 */
+	static String[] allKeys(String value) {
 		String tempStr="";
-		Pattern compile = Pattern.compile("(#.+?#)");
-		Matcher matcher = compile.matcher(value);
+		Matcher matcher = ALL_KEY_PATTERN.matcher(value);
 		while(matcher.find()) {
 			tempStr+=","+matcher.group(1);
 		}
@@ -396,28 +544,80 @@ public class ExcelOperate {
 		return tempStr.split(",");
 	}
 	
+	/**
+	 * 	将合并单元格的值里的 #key# 替换为data里的值：整个单元格只有一个key时直接返回data里的值，否则返回替换后的字符串
+	 * 	data为null或没有key时返回null，替换为字符串时没有值的key替换为""
+	 * @param cellValue
+	 * @param allKey
+	 * @param data
+	 * @return
+	 */
+	static Object resolveMergedValue(String cellValue,String[] allKey,Map<String,Object> data) {
+		if(data==null) return null;
+		Object value=null;
+		for(String str:allKey) {
+			String key=patternKey(str);
+			Object object = data.get(key);
+			if((allKey.length>1 || cellValue.length()>str.length()) && (value==null || value instanceof String)) {
+				if(value==null) {
+					value=cellValue;
+				}
+				value=value.toString().replace(str, object==null?"":object.toString());
+			}else {
+				value=object;
+			}
+		}
+		return value;
+	}
+	
 	/**
 	 * 	从缓存区获取指定样式，如果没有，则进行创建并进行缓存，如果已经存在，则直接从缓存里获取(解决Cell Style数量太多的问题)
 	 * @param cellStyle
 	 * @return
 	 */
-	private CellStyle getOrPutCellStyleMap(CellStyle cellStyle) {
+	CellStyle getOrPutCellStyleMap(CellStyle cellStyle) {
 		newCellStyle = cellStyleMap.get(String.valueOf(cellStyle.hashCode()));
 		if(newCellStyle == null) {
-			newCellStyle = targetWorkBook.createCellStyle();
-			newCellStyle.cloneStyleFrom(cellStyle);
-			newCellStyle.setFillPattern(cellStyle.getFillPattern()==1?CellStyle.SOLID_FOREGROUND:CellStyle.NO_FILL);
+			newCellStyle = cloneCellStyle(cellStyle);
 			cellStyleMap.put(String.valueOf(cellStyle.hashCode()), newCellStyle);
 		}
 		return newCellStyle;
 	}
 	
+	/**
+	 * 	合并范围大小不同时使用的样式：左上角单元格的样式加上右下角单元格的右边框和下边框，
+	 * 	在目标Workbook里创建并缓存，不修改模板的样式(模板Workbook会被缓存复用)
+	 * @param firstStyle
+	 * @param lastStyle
+	 * @return
+	 */
+	private CellStyle getOrPutRegionStyle(CellStyle firstStyle,CellStyle lastStyle) {
+		String key = "region:"+firstStyle.hashCode()+":"+lastStyle.hashCode();
+		CellStyle regionStyle = cellStyleMap.get(key);
+		if(regionStyle == null) {
+			regionStyle = cloneCellStyle(firstStyle);
+			regionStyle.setBorderRight(lastStyle.getBorderRight());
+			regionStyle.setBorderBottom(lastStyle.getBorderBottom());
+			regionStyle.setRightBorderColor(lastStyle.getRightBorderColor());
+			regionStyle.setBottomBorderColor(lastStyle.getBottomBorderColor());
+			cellStyleMap.put(key, regionStyle);
+		}
+		return regionStyle;
+	}
+	
+	private CellStyle cloneCellStyle(CellStyle cellStyle) {
+		CellStyle style = targetWorkBook.createCellStyle();
+		style.cloneStyleFrom(cellStyle);
+		style.setFillPattern(cellStyle.getFillPattern()==1?CellStyle.SOLID_FOREGROUND:CellStyle.NO_FILL);
+		return style;
+	}
+	
 	/**
 	 * 	从源Sheet合并范围的样式同步到目标Sheet指定合并范围的样式，并同步合并单元格的列宽
 	 * @param originCellRangeAddress
 	 * @param targetCellRangeAddress
 	 */
-	private void setRegionStyle(CellRangeAddress originCellRangeAddress,CellRangeAddress targetCellRangeAddress) {
+	void setRegionStyle(CellRangeAddress originCellRangeAddress,CellRangeAddress targetCellRangeAddress) {
 		int firstRow = originCellRangeAddress.getFirstRow();
 		int lastRow = originCellRangeAddress.getLastRow();
 		int firstColumn = originCellRangeAddress.getFirstColumn();
@@ -443,15 +643,9 @@ public class ExcelOperate {
 				}
 			}
 		}else {
-			Cell mmoduleFirstCell = getCell(firstRow, firstColumn);
-			Cell mmoduleLastCell = getCell(lastRow, lastColumn);
-			CellStyle firstStyle = mmoduleFirstCell.getCellStyle();
-			CellStyle lastStyle = mmoduleLastCell.getCellStyle();
-			firstStyle.setBorderRight(lastStyle.getBorderRight());
-			firstStyle.setBorderBottom(lastStyle.getBorderBottom());
-			firstStyle.setRightBorderColor(lastStyle.getRightBorderColor());
-			firstStyle.setBottomBorderColor(lastStyle.getBottomBorderColor());
-			CellStyle cellStyle = getOrPutCellStyleMap(firstStyle);
+			CellStyle firstStyle = getCellStyle(getCell(firstRow, firstColumn));
+			CellStyle lastStyle = getCellStyle(getCell(lastRow, lastColumn));
+			CellStyle cellStyle = getOrPutRegionStyle(firstStyle, lastStyle);
 			
 			for(int y=fr,offsetY=0;y<=lr;y++,offsetY++) {
 				Row targetRow = targetSheet.getRow(y);
@@ -471,17 +665,25 @@ public class ExcelOperate {
 	}
 	
 	/**
-	 * 	获取源Sheet指定行列的单元格对象
+	 * 	获取源Sheet指定行列的单元格对象，不存在时返回null(不在模板里创建，模板Workbook会被缓存复用)
 	 * @param row
 	 * @param col
 	 * @return
 	 */
 	private Cell getCell(int row,int col) {
 		Row _row = sheet.getRow(row);
-		if(_row==null) _row=sheet.createRow(row);
-		Cell _cell = _row.getCell(col);
-		if(_cell==null) _cell=_row.createCell(col);
-		return _cell;
+		if(_row==null) return null;
+		return _row.getCell(col);
+	}
+	
+	/**
+	 * 	源单元格的样式，单元格不存在时为新建单元格的默认样式
+	 * @param cell
+	 * @return
+	 */
+	private CellStyle getCellStyle(Cell cell) {
+		if(cell!=null) return cell.getCellStyle();
+		return workbook.getCellStyleAt((short)(workbook instanceof HSSFWorkbook?0x0F:0));
 	}
 	
 	/**
@@ -547,6 +749,9 @@ public class ExcelOperate {
 	 * @return 
 	 */
 	private int[] getRowContainsMerged(int row) {
+		if(plan!=null) {
+			return plan.getRowContainsMerged(row);
+		}
 		int[] r=new int[4];
 		int _numMergedRegions = sheet.getNumMergedRegions();
 		for(int i=0;i<_numMergedRegions;i++) {
@@ -597,6 +802,9 @@ public class ExcelOperate {
 	 * @return
 	 */
 	private boolean isMergedRegion(int row,int col) {
+		if(plan!=null) {
+			return plan.getMergedRegionIndex(row, col)!=-1;
+		}
 		int numMergedRegions = sheet.getNumMergedRegions();
 		for(int i=0;i<numMergedRegions;i++) {
 			CellRangeAddress mergedRegion = sheet.getMergedRegion(i);
@@ -614,6 +822,9 @@ public class ExcelOperate {
 	 * @return
 	 */
 	public int getMergedRegionIndex(Sheet sheet,int row,int col) {
+		if(plan!=null && sheet==this.sheet) {
+			return plan.getMergedRegionIndex(row, col);
+		}
 		int numMergedRegions = sheet.getNumMergedRegions();
 		for(int i=0;i<numMergedRegions;i++) {
 			CellRangeAddress mergedRegion = sheet.getMergedRegion(i);
@@ -629,6 +840,14 @@ public class ExcelOperate {
 	 * @return
 	 */
 	public String getCellValue(Cell cell) {
+		return cellText(cell);
+	}
+	
+	/**
+	 * 	获取指定单元格的值
+	 * @return
+	 */
+	static String cellText(Cell cell) {
 		if(cell!=null) {
 			int cellType = cell.getCellType();
 			if(Cell.CELL_TYPE_BLANK == cellType) {
@@ -656,6 +875,7 @@ public class ExcelOperate {
 	public void setCellValue(Cell targetCell,Object value) {
 		String val = String.valueOf(value);
 		if(value instanceof String) {
+			if(setStringValue(targetCell, val, false)) return;
 			targetCell.setCellType(Cell.CELL_TYPE_STRING);
 			targetCell.setCellValue(val);
 		}else if(value instanceof Number) {
@@ -694,13 +914,15 @@ public class ExcelOperate {
 	
 	/**
 	 *	将源Cell里的值设置到targetCell值中
+	 * 	originCell为null(模板里不存在的单元格)时按空单元格处理
 	 * @param targetCell
 	 * @param originCell
 	 */
 	public void setCellValue(Cell targetCell,Cell originCell) {
-		int cellType = originCell.getCellType();
-		targetCell.setCellType(cellType);
+		int cellType = originCell==null?Cell.CELL_TYPE_BLANK:originCell.getCellType();
 		String cellValue = getCellValue(originCell);
+		if(cellType==Cell.CELL_TYPE_STRING && setStringValue(targetCell, cellValue, true)) return;
+		targetCell.setCellType(cellType);
 		switch (cellType) {
 			case Cell.CELL_TYPE_BLANK:
 			case Cell.CELL_TYPE_STRING:
@@ -721,14 +943,52 @@ public class ExcelOperate {
 		}
 	}
 	
+	/**
+	 * 	按字符串的写入方式(StringStrategy)直接设置XLSX单元格的字符串，不经过 setCellType，
+	 * 	返回false时表示使用POI默认的方式
+	 * @param targetCell
+	 * @param value
+	 * @param literal 是否为模板里的固定文本
+	 * @return
+	 */
+	private boolean setStringValue(Cell targetCell,String value,boolean literal) {
+		if(stringStrategy==StringStrategy.SHARED || !(targetCell instanceof XSSFCell)) return false;
+		CTCell ctCell = ((XSSFCell)targetCell).getCTCell();
+		if(ctCell.isSetF()) ctCell.unsetF();
+		if(!literal && stringStrategy==StringStrategy.INLINE_DATA) {
+			if(ctCell.isSetV()) ctCell.unsetV();
+			ctCell.setIs(new XSSFRichTextString(value).getCTRst());
+			ctCell.setT(STCellType.INLINE_STR);
+		}else {
+			String index = sharedStringIndex.get(value);
+			if(index==null) {
+				SharedStringsTable sharedStringSource = ((XSSFWorkbook)targetWorkBook).getSharedStringSource();
+				index=Integer.toString(sharedStringSource.addEntry(new XSSFRichTextString(value).getCTRst()));
+				sharedStringIndex.put(value, index);
+			}
+			if(ctCell.isSetIs()) ctCell.unsetIs();
+			ctCell.setT(STCellType.S);
+			ctCell.setV(index);
+		}
+		return true;
+	}
+	
 	/**
 	 * 	获取Excel的匹配Key名称
 	 * @param key
 	 * @return
 	 */
 	public String getPattermKey(String key) {
-		Pattern compile = Pattern.compile("#(.+)#");
-		Matcher matcher = compile.matcher(key);
+		return patternKey(key);
+	}
+	
+	/**
+	 * 	获取Excel的匹配Key名称
+	 * @param key
+	 * @return
+	 */
+	static String patternKey(String key) {
+		Matcher matcher = KEY_PATTERN.matcher(key);
 		if(matcher.matches() && matcher.groupCount()>0) {
 			return matcher.group(1);
 		}
@@ -804,31 +1064,15 @@ public class ExcelOperate {
 	 * 	合并指定范围的单元格，如果范围内的单元格如已被合并，则进行删除，再进行合并
 	 */
 	public void addMergedRange(int moduleMergedindex,CellRangeAddress cellRangeAddress) {
-		int firstRow = cellRangeAddress.getFirstRow();
-		int lastRow = cellRangeAddress.getLastRow();
-		int firstColumn = cellRangeAddress.getFirstColumn();
-		int lastColumn = cellRangeAddress.getLastColumn();
-		
-		Set<Integer> indexSet=new LinkedHashSet<Integer>();
-		
-		for(int row=firstRow;row<=lastRow;row++) {
-			for(int col=firstColumn;col<=lastColumn;col++) {
-				int index = getMergedRegionIndex(this.targetSheet,row,col);
-				if(index!=-1 && !indexSet.contains(index)) {
-					indexSet.add(index);
-				}
-			}
-		}
-		
-		Integer[] indexs=new Integer[indexSet.size()];
-		indexSet.toArray(indexs);
-		Arrays.sort(indexs);
-		for(int i=indexs.length-1;i>=0;i--) {
-			targetSheet.removeMergedRegion(indexs[i]);
-		}
-		
-		targetSheet.addMergedRegion(cellRangeAddress);
-		setRegionStyle(this.sheet.getMergedRegion(moduleMergedindex), cellRangeAddress);
+		new MergedRegionBatch(this).add(moduleMergedindex, cellRangeAddress).commit();
+	}
+	
+	/**
+	 * 	创建批量合并单元格，大量合并时使用，避免逐个调用 addMergedRange
+	 * @return
+	 */
+	public MergedRegionBatch createMergedRegionBatch() {
+		return new MergedRegionBatch(this);
 	}
 	
 	/**
@@ -858,7 +1102,17 @@ public class ExcelOperate {
 	 * @throws IOException
 	 */
 	public void write(String targerPath) throws FileNotFoundException, IOException {
-		targetWorkBook.write(new FileOutputStream(targerPath));
+		OutputStream os=new FileOutputStream(targerPath);
+		boolean success=false;
+		try {
+			write(os);
+			success=true;
+		}finally {
+			os.close();
+			if(!success && renderMonitor!=null && renderMonitor.isCancelled()) {
+				new File(targerPath).delete();
+			}
+		}
 	}
 	
 	/**
@@ -868,6 +1122,30 @@ public class ExcelOperate {
 	 * @throws IOException
 	 */
 	public void write(OutputStream os) throws FileNotFoundException, IOException {
-		targetWorkBook.write(os);
+		if(renderMonitor==null) {
+			targetWorkBook.write(os);
+			return;
+		}
+		checkRender(0);
+		try {
+			targetWorkBook.write(renderMonitor.wrap(os));
+		} catch (RuntimeException e) {
+			throw cancelledOr(e);
+		} catch (IOException e) {
+			RenderCancelledException cancelled = RenderMonitor.findCancelled(e);
+			if(cancelled==null) throw e;
+			throw cancelledOr(cancelled);
+		}
+		renderMonitor.finish();
+	}
+	
+	/**
+	 * 	序列化时被取消(POI会包装输出流的异常)：释放后抛出 RenderCancelledException，否则抛出原异常
+	 */
+	private RuntimeException cancelledOr(RuntimeException e) {
+		RenderCancelledException cancelled = RenderMonitor.findCancelled(e);
+		if(cancelled==null) return e;
+		abort();
+		return cancelled;
 	}
 }
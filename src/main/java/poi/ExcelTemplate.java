@@ -0,0 +1,178 @@
+package poi;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * 缓存的模板：模板文件内容、解析结果(TemplatePlan)以及空闲的已解析Workbook
+ * 由 ExcelTemplateCache 创建
+ * @author xhc
+ *
+ */
+public class ExcelTemplate {
+
+	/**
+	 * 每个模板最多保留的空闲Workbook数量
+	 */
+	private static final int MAX_IDLE_WORKBOOK=4;
+
+	private final String path;
+
+	private final ExcelSuffix suffix;
+
+	private final long lastModified;
+
+	private final long length;
+
+	private final byte[] content;
+
+	private TemplatePlan plan;
+
+	private final LinkedList<Workbook> idleWorkbooks=new LinkedList<Workbook>();
+
+	ExcelTemplate(String path,ExcelSuffix suffix,long lastModified,long length,byte[] content,TemplatePlan plan) {
+		this.path=path;
+		this.suffix=suffix;
+		this.lastModified=lastModified;
+		this.length=length;
+		this.content=content;
+		this.plan=plan;
+	}
+
+	/**
+	 * 	读取模板文件
+	 * @param file
+	 * @param suffix
+	 * @return
+	 * @throws IOException
+	 */
+	static ExcelTemplate load(File file,ExcelSuffix suffix) throws IOException {
+		long lastModified = file.lastModified();
+		long length = file.length();
+		byte[] content=new byte[(int)length];
+		InputStream is=new FileInputStream(file);
+		try {
+			int offset=0;
+			while(offset<content.length) {
+				int read = is.read(content, offset, content.length-offset);
+				if(read==-1) throw new IOException("模板文件读取不完整:"+file);
+				offset+=read;
+			}
+		}finally {
+			is.close();
+		}
+		return new ExcelTemplate(file.getAbsolutePath(), suffix, lastModified, length, content, null);
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public ExcelSuffix getSuffix() {
+		return suffix;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * 	判断模板文件是否与缓存时一致
+	 */
+	boolean matches(long lastModified,long length,ExcelSuffix suffix) {
+		return this.lastModified==lastModified && this.length==length && this.suffix==suffix;
+	}
+
+	/**
+	 * 	模板文件的原始内容(不可修改)
+	 */
+	byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * 	获取模板第一个Sheet的解析结果，第一次调用时进行解析
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized TemplatePlan getPlan() throws IOException {
+		if(plan==null) {
+			Workbook workbook = borrowWorkbook();
+			try {
+				plan=TemplatePlan.compile(workbook.getSheetAt(0));
+			}finally {
+				returnWorkbook(workbook);
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * 	借出一个已解析的模板Workbook，没有空闲时进行解析，用完后需调用 returnWorkbook 归还
+	 * @return
+	 * @throws IOException
+	 */
+	public Workbook borrowWorkbook() throws IOException {
+		synchronized (idleWorkbooks) {
+			if(!idleWorkbooks.isEmpty()) {
+				return idleWorkbooks.removeFirst();
+			}
+		}
+		if(suffix==ExcelSuffix.XLS) {
+			return new HSSFWorkbook(new ByteArrayInputStream(content));
+		}
+		return new XSSFWorkbook(new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * 	归还借出的模板Workbook
+	 * @param workbook
+	 */
+	public void returnWorkbook(Workbook workbook) {
+		synchronized (idleWorkbooks) {
+			if(idleWorkbooks.size()<MAX_IDLE_WORKBOOK) {
+				idleWorkbooks.addFirst(workbook);
+			}
+		}
+	}
+
+	/**
+	 * 	写入快照(模板文件内容+解析结果)
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		TemplatePlan plan = getPlan();
+		TemplatePlan.writeString(out, path);
+		out.writeUTF(suffix.name());
+		out.writeLong(lastModified);
+		out.writeLong(length);
+		out.writeInt(content.length);
+		out.write(content);
+		plan.writeTo(out);
+	}
+
+	/**
+	 * 	读取快照
+	 */
+	static ExcelTemplate readFrom(DataInputStream in) throws IOException {
+		String path = TemplatePlan.readString(in);
+		ExcelSuffix suffix = ExcelSuffix.valueOf(in.readUTF());
+		long lastModified = in.readLong();
+		long length = in.readLong();
+		byte[] content=new byte[in.readInt()];
+		in.readFully(content);
+		TemplatePlan plan = TemplatePlan.readFrom(in);
+		return new ExcelTemplate(path, suffix, lastModified, length, content, plan);
+	}
+}
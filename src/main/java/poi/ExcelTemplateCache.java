@@ -0,0 +1,150 @@
+package poi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * 进程内的模板缓存，以 模板路径+修改时间+文件大小 判断是否有效，超出容量时淘汰最久未使用的模板
+ * 可以将缓存写成二进制快照，服务启动时直接加载，无需再解析模板
+ * @author xhc
+ *
+ */
+public class ExcelTemplateCache {
+
+	/**
+	 * 快照文件头 "XTC1"
+	 */
+	private static final int SNAPSHOT_MAGIC=0x58544331;
+
+	private static final ExcelTemplateCache DEFAULT=new ExcelTemplateCache(32);
+
+	private int maxEntries;
+
+	private final LinkedHashMap<String,ExcelTemplate> templates=new LinkedHashMap<String, ExcelTemplate>(16,0.75f,true);
+
+	public ExcelTemplateCache(int maxEntries) {
+		this.maxEntries=maxEntries;
+	}
+
+	/**
+	 * 	获取进程内共享的缓存
+	 * @return
+	 */
+	public static ExcelTemplateCache getDefault() {
+		return DEFAULT;
+	}
+
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries=maxEntries;
+		evict();
+	}
+
+	/**
+	 * 	获取模板，缓存中没有或模板文件已修改时重新读取
+	 * @param modelPath
+	 * @param suffix
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized ExcelTemplate getTemplate(String modelPath,ExcelSuffix suffix) throws IOException {
+		File file=new File(modelPath);
+		if(!file.isFile()) {
+			throw new FileNotFoundException(modelPath);
+		}
+		String path = file.getAbsolutePath();
+		ExcelTemplate template = templates.get(path);
+		if(template!=null && template.matches(file.lastModified(), file.length(), suffix)) {
+			return template;
+		}
+		template=ExcelTemplate.load(file, suffix);
+		templates.put(path, template);
+		evict();
+		return template;
+	}
+
+	/**
+	 * 	移除指定模板
+	 * @param modelPath
+	 */
+	public synchronized void invalidate(String modelPath) {
+		templates.remove(new File(modelPath).getAbsolutePath());
+	}
+
+	public synchronized void clear() {
+		templates.clear();
+	}
+
+	public synchronized int size() {
+		return templates.size();
+	}
+
+	/**
+	 * 	淘汰最久未使用的模板
+	 */
+	private void evict() {
+		Iterator<String> iterator = templates.keySet().iterator();
+		while(templates.size()>maxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * 	将缓存中全部模板写成二进制快照
+	 * @param os
+	 * @throws IOException
+	 */
+	public void writeSnapshot(OutputStream os) throws IOException {
+		List<ExcelTemplate> list;
+		synchronized (this) {
+			list=new ArrayList<ExcelTemplate>(templates.values());
+		}
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(list.size());
+		for(ExcelTemplate template:list) {
+			template.writeTo(out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * 	加载二进制快照，已存在的同路径模板会被覆盖；模板文件之后若有修改，getTemplate时会重新读取
+	 * @param is
+	 * @throws IOException
+	 */
+	public void loadSnapshot(InputStream is) throws IOException {
+		DataInputStream in=new DataInputStream(new BufferedInputStream(is));
+		if(in.readInt()!=SNAPSHOT_MAGIC) {
+			throw new IOException("不支持的模板快照格式");
+		}
+		int count = in.readInt();
+		Map<String,ExcelTemplate> loaded=new LinkedHashMap<String, ExcelTemplate>();
+		for(int i=0;i<count;i++) {
+			ExcelTemplate template = ExcelTemplate.readFrom(in);
+			loaded.put(template.getPath(), template);
+		}
+		synchronized (this) {
+			templates.putAll(loaded);
+			evict();
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package poi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+
+/**
+ * 数值矩阵(交叉表)输出：模板行的数值列按期间横向展开，其右边的列依次后移
+ * 样式、列宽、行高在开始时按模板列解析一次，之后直接用 double 写单元格，不经过Map和装箱
+ * 模板行中 #key# 的文本列用 setRowLabels 绑定的数组取值，没有绑定的留空
+ * @author xhc
+ *
+ */
+public class MatrixFill {
+
+	private final ExcelOperate operate;
+
+	private int templateRow=-1;
+
+	private int valueColumn=-1;
+
+	private int headerRow=-1;
+
+	private String[] periodLabels;
+
+	private final Map<String,String[]> rowLabels=new HashMap<String, String[]>();
+
+	public MatrixFill(ExcelOperate operate) {
+		this.operate=operate;
+	}
+
+	/**
+	 * 	数值区域的模板行(不能包含合并单元格)
+	 */
+	public MatrixFill setTemplateRow(int templateRow) {
+		this.templateRow=templateRow;
+		return this;
+	}
+
+	/**
+	 * 	模板行中按期间横向展开的列
+	 */
+	public MatrixFill setValueColumn(int valueColumn) {
+		this.valueColumn=valueColumn;
+		return this;
+	}
+
+	/**
+	 * 	表头的模板行(不能包含合并单元格)，数值列展开后依次填入期间名称，其它列复制模板的值
+	 * @param headerRow
+	 * @param periodLabels 期间名称
+	 */
+	public MatrixFill setHeader(int headerRow,String... periodLabels) {
+		this.headerRow=headerRow;
+		this.periodLabels=periodLabels;
+		return this;
+	}
+
+	/**
+	 * 	模板行中 #key# 列每一行的文本，数量必须与输出的行数相同(null为空单元格)
+	 */
+	public MatrixFill setRowLabels(String key,String... labels) {
+		rowLabels.put(key, labels);
+		return this;
+	}
+
+	/**
+	 * 	按行输出，values[行][期间]，NaN 为空单元格；没有行时只输出表头(期间数为期间名称的数量)
+	 * @param values 每行的期间数必须相同
+	 * @return 输出的行数(不含表头)
+	 */
+	public int fillRows(double[][] values) {
+		int periods = checkSameLength(values, "行");
+		return fill(values.length, periods, values, null);
+	}
+
+	/**
+	 * 	按列输出，columns[期间][行]，NaN 为空单元格；没有期间时只输出表头(期间数为期间名称的数量)
+	 * @param columns 每个期间一列，每列的行数必须相同
+	 * @return 输出的行数(不含表头)
+	 */
+	public int fillColumns(double[]... columns) {
+		int rowCount = checkSameLength(columns, "列");
+		return fill(rowCount, columns.length, null, columns);
+	}
+
+	/**
+	 * 	在写入目标Sheet之前检查每个数组的长度都相同，返回该长度
+	 */
+	private static int checkSameLength(double[][] arrays,String name) {
+		if(arrays.length==0) return 0;
+		int length=-1;
+		for(int i=0;i<arrays.length;i++) {
+			if(arrays[i]==null) {
+				throw new IllegalArgumentException("第"+i+name+"为null");
+			}
+			if(length==-1) {
+				length=arrays[i].length;
+			}else if(arrays[i].length!=length) {
+				throw new IllegalArgumentException("第"+i+name+"的长度("+arrays[i].length+")与第0"+name+"("+length+")不同");
+			}
+		}
+		return length;
+	}
+
+	private int fill(int rowCount,int periods,double[][] rows,double[][] columns) {
+		if(templateRow<0 || valueColumn<0) {
+			throw new IllegalStateException("未设置模板行或数值列");
+		}
+		operate.checkRender(0);
+		if(periods==0) {
+			if(rowCount>0) {
+				throw new IllegalArgumentException("期间数不能为0");
+			}
+			//没有数据(空的查询结果)：只输出表头
+			if(headerRow<0 || periodLabels.length==0) return 0;
+			periods=periodLabels.length;
+		}
+		Sheet sheet = operate.getModuleSheet();
+		Sheet targetSheet = operate.getTargetSheet();
+		Row origin = sheet.getRow(templateRow);
+		if(origin==null || origin.getCell(valueColumn)==null) {
+			throw new IllegalArgumentException("模板行没有数值列:"+templateRow+","+valueColumn);
+		}
+		checkNoMerged(origin);
+		if(headerRow>=0) {
+			checkNoMerged(sheet.getRow(headerRow));
+			if(periodLabels.length<periods) {
+				throw new IllegalArgumentException("期间名称的数量少于期间数:"+periodLabels.length);
+			}
+		}
+
+		//在写入目标Sheet之前检查绑定的文本数
+		int columnCount = origin.getLastCellNum();
+		String[] keys=new String[columnCount];
+		for(int col=0;col<columnCount;col++) {
+			Cell cell = origin.getCell(col);
+			if(cell==null) continue;
+			keys[col]=ExcelOperate.patternKey(ExcelOperate.cellText(cell));
+			String[] columnLabels = keys[col]==null?null:rowLabels.get(keys[col]);
+			if(columnLabels!=null && columnLabels.length!=rowCount) {
+				throw new IllegalArgumentException("#"+keys[col]+"#的文本数("+columnLabels.length+")与行数("+rowCount+")不同");
+			}
+		}
+
+		//按模板列解析一次
+		CellStyle[] styles=new CellStyle[columnCount];
+		Cell[] literals=new Cell[columnCount];
+		String[][] labels=new String[columnCount][];
+		for(int col=0;col<columnCount;col++) {
+			Cell cell = origin.getCell(col);
+			if(cell==null) continue;
+			styles[col]=operate.getOrPutCellStyleMap(cell.getCellStyle());
+			if(keys[col]==null) {
+				literals[col]=cell;
+			}else {
+				labels[col]=rowLabels.get(keys[col]);
+			}
+			int width = sheet.getColumnWidth(col);
+			if(col==valueColumn) {
+				for(int p=0;p<periods;p++) {
+					targetSheet.setColumnWidth(col+p, width);
+				}
+			}else {
+				targetSheet.setColumnWidth(targetColumn(col, periods), width);
+			}
+		}
+		CellStyle valueStyle=styles[valueColumn];
+		//XSSF直接设置样式下标，避免 setCellStyle 每次在样式表里查找
+		boolean xssf = valueStyle instanceof XSSFCellStyle;
+		long valueStyleIndex = xssf?((XSSFCellStyle)valueStyle).getIndex():0;
+		short height = origin.getHeight();
+
+		if(headerRow>=0) {
+			writeHeader(sheet.getRow(headerRow), periods);
+		}
+
+		int rowNum = operate.getNextAppendRow();
+		for(int r=0;r<rowCount;r++,rowNum++) {
+			Row tRow = targetSheet.createRow(rowNum);
+			tRow.setHeight(height);
+			for(int col=0;col<valueColumn;col++) {
+				fillCell(tRow, col, styles[col], literals[col], labels[col], r);
+			}
+			for(int p=0,tCol=valueColumn;p<periods;p++,tCol++) {
+				Cell tCell = tRow.createCell(tCol);
+				if(xssf) {
+					((XSSFCell)tCell).getCTCell().setS(valueStyleIndex);
+				}else {
+					tCell.setCellStyle(valueStyle);
+				}
+				double value = rows!=null?rows[r][p]:columns[p][r];
+				if(value==value) {
+					tCell.setCellValue(value);
+				}
+			}
+			for(int col=valueColumn+1;col<columnCount;col++) {
+				fillCell(tRow, col+periods-1, styles[col], literals[col], labels[col], r);
+			}
+			operate.checkRender(1);
+		}
+		return rowCount;
+	}
+
+	/**
+	 * 	数值列以外的单元格：模板的值或绑定的文本
+	 */
+	private void fillCell(Row tRow,int tCol,CellStyle style,Cell literal,String[] labels,int r) {
+		if(style==null) return;
+		Cell tCell = tRow.createCell(tCol);
+		tCell.setCellStyle(style);
+		if(literal!=null) {
+			if(literal.getCellType()!=Cell.CELL_TYPE_BLANK) {
+				operate.setCellValue(tCell, literal);
+			}
+		}else if(labels!=null && labels[r]!=null) {
+			operate.setCellValue(tCell, labels[r]);
+		}
+	}
+
+	private void writeHeader(Row header,int periods) {
+		Sheet targetSheet = operate.getTargetSheet();
+		Row tRow = targetSheet.createRow(operate.getNextAppendRow());
+		tRow.setHeight(header.getHeight());
+		for(int col=header.getFirstCellNum();col<header.getLastCellNum();col++) {
+			Cell cell = header.getCell(col);
+			if(cell==null) continue;
+			CellStyle style = operate.getOrPutCellStyleMap(cell.getCellStyle());
+			if(col==valueColumn) {
+				for(int p=0;p<periods;p++) {
+					Cell tCell = tRow.createCell(col+p);
+					tCell.setCellStyle(style);
+					operate.setCellValue(tCell, periodLabels[p]);
+				}
+			}else {
+				Cell tCell = tRow.createCell(targetColumn(col, periods));
+				tCell.setCellStyle(style);
+				if(cell.getCellType()!=Cell.CELL_TYPE_BLANK) {
+					operate.setCellValue(tCell, cell);
+				}
+			}
+		}
+		operate.checkRender(1);
+	}
+
+	private int targetColumn(int col,int periods) {
+		return col>valueColumn?col+periods-1:col;
+	}
+
+	private void checkNoMerged(Row row) {
+		if(row==null) {
+			throw new IllegalArgumentException("模板行不存在");
+		}
+		Sheet sheet = operate.getModuleSheet();
+		for(int col=row.getFirstCellNum();col<row.getLastCellNum();col++) {
+			if(operate.getMergedRegionIndex(sheet, row.getRowNum(), col)!=-1) {
+				throw new IllegalArgumentException("模板行不能包含合并单元格:"+row.getRowNum());
+			}
+		}
+	}
+}
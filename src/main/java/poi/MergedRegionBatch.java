@@ -0,0 +1,236 @@
+package poi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.xmlbeans.XmlCursor;
+import org.apache.xmlbeans.XmlObject;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTMergeCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTMergeCells;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorksheet;
+
+/**
+ * 批量合并单元格：先将添加/删除操作排队，commit 时用按行分块的索引一次性解决重叠，
+ * 再统一写入目标Sheet，每个新合并单元格只设置一次样式
+ * @author xhc
+ *
+ */
+public class MergedRegionBatch {
+
+	/**
+	 * 索引每块的行数(2的幂)
+	 */
+	private static final int BUCKET_SHIFT=5;
+
+	private final ExcelOperate operate;
+
+	private final List<Operation> operations=new ArrayList<Operation>();
+
+	/**
+	 * 	排队的操作
+	 */
+	private static class Operation{
+		private final boolean add;
+		private final CellRangeAddress range;
+		private final int moduleMergedIndex;
+
+		Operation(boolean add,CellRangeAddress range,int moduleMergedIndex) {
+			this.add=add;
+			this.range=range;
+			this.moduleMergedIndex=moduleMergedIndex;
+		}
+	}
+
+	/**
+	 * 	commit 时的合并单元格
+	 */
+	private static class Region{
+		private final CellRangeAddress range;
+		/**
+		 * 目标Sheet里原有的下标，新添加的为-1
+		 */
+		private final int index;
+		private final int moduleMergedIndex;
+		private boolean removed;
+		private int visited=-1;
+
+		Region(CellRangeAddress range,int index,int moduleMergedIndex) {
+			this.range=range;
+			this.index=index;
+			this.moduleMergedIndex=moduleMergedIndex;
+		}
+	}
+
+	public MergedRegionBatch(ExcelOperate operate) {
+		this.operate=operate;
+	}
+
+	/**
+	 * 	添加合并单元格，与之重叠的合并单元格(包括之前排队添加的)会被删除，commit 时同步源Sheet合并单元格的样式
+	 * @param moduleMergedIndex 源Sheet合并单元格的下标
+	 * @param cellRangeAddress
+	 * @return
+	 */
+	public MergedRegionBatch add(int moduleMergedIndex,CellRangeAddress cellRangeAddress) {
+		operations.add(new Operation(true, cellRangeAddress, moduleMergedIndex));
+		return this;
+	}
+
+	/**
+	 * 	添加合并单元格，与之重叠的合并单元格(包括之前排队添加的)会被删除，不设置样式
+	 * @param cellRangeAddress
+	 * @return
+	 */
+	public MergedRegionBatch add(CellRangeAddress cellRangeAddress) {
+		return add(-1, cellRangeAddress);
+	}
+
+	/**
+	 * 	删除与指定范围重叠的合并单元格
+	 * @param cellRangeAddress
+	 * @return
+	 */
+	public MergedRegionBatch remove(CellRangeAddress cellRangeAddress) {
+		operations.add(new Operation(false, cellRangeAddress, -1));
+		return this;
+	}
+
+	/**
+	 * 	排队的操作数量
+	 */
+	public int size() {
+		return operations.size();
+	}
+
+	/**
+	 * 	将排队的操作一次性写入目标Sheet
+	 */
+	public void commit() {
+		Sheet targetSheet = operate.getTargetSheet();
+		Map<Integer,List<Region>> buckets=new HashMap<Integer, List<Region>>();
+		List<Region> regions=new ArrayList<Region>();
+		CellRangeAddress[] existing = getMergedRegions(targetSheet);
+		int numMergedRegions = existing.length;
+		for(int i=0;i<numMergedRegions;i++) {
+			Region region=new Region(existing[i], i, -1);
+			regions.add(region);
+			index(buckets, region);
+		}
+
+		int removedCount=0;
+		for(int o=0;o<operations.size();o++) {
+			Operation operation = operations.get(o);
+			CellRangeAddress range = operation.range;
+			for(int bucket=range.getFirstRow()>>BUCKET_SHIFT;bucket<=range.getLastRow()>>BUCKET_SHIFT;bucket++) {
+				List<Region> list = buckets.get(bucket);
+				if(list==null) continue;
+				for(Region region:list) {
+					if(region.removed || region.visited==o) continue;
+					region.visited=o;
+					if(intersects(region.range, range)) {
+						region.removed=true;
+						if(region.index!=-1) removedCount++;
+					}
+				}
+			}
+			if(operation.add) {
+				Region region=new Region(range, -1, operation.moduleMergedIndex);
+				regions.add(region);
+				index(buckets, region);
+			}
+		}
+
+		if(targetSheet instanceof XSSFSheet) {
+			writeRegions((XSSFSheet)targetSheet, regions, removedCount>0);
+		}else {
+			for(int r=numMergedRegions-1;r>=0 && removedCount>0;r--) {
+				if(regions.get(r).removed) {
+					targetSheet.removeMergedRegion(r);
+				}
+			}
+			for(int r=numMergedRegions;r<regions.size();r++) {
+				if(!regions.get(r).removed) {
+					targetSheet.addMergedRegion(regions.get(r).range);
+				}
+			}
+		}
+		Sheet moduleSheet = operate.getModuleSheet();
+		for(int r=numMergedRegions;r<regions.size();r++) {
+			Region region = regions.get(r);
+			if(!region.removed && region.moduleMergedIndex!=-1) {
+				operate.setRegionStyle(moduleSheet.getMergedRegion(region.moduleMergedIndex), region.range);
+			}
+		}
+		operations.clear();
+	}
+
+	/**
+	 * 	获取Sheet里全部的合并单元格(XSSFSheet.getMergedRegion(i)每次都要从头遍历，XLSX用游标顺序读取一遍)
+	 */
+	private static CellRangeAddress[] getMergedRegions(Sheet sheet) {
+		if(sheet instanceof XSSFSheet) {
+			CTWorksheet worksheet = ((XSSFSheet)sheet).getCTWorksheet();
+			if(!worksheet.isSetMergeCells()) return new CellRangeAddress[0];
+			CTMergeCells mergeCells = worksheet.getMergeCells();
+			CellRangeAddress[] ranges=new CellRangeAddress[mergeCells.sizeOfMergeCellArray()];
+			XmlCursor cursor = mergeCells.newCursor();
+			try {
+				int i=0;
+				for(boolean found=cursor.toFirstChild();found && i<ranges.length;found=cursor.toNextSibling()) {
+					XmlObject object = cursor.getObject();
+					if(object instanceof CTMergeCell) {
+						ranges[i++]=CellRangeAddress.valueOf(((CTMergeCell)object).getRef());
+					}
+				}
+			}finally {
+				cursor.dispose();
+			}
+			return ranges;
+		}
+		int numMergedRegions = sheet.getNumMergedRegions();
+		CellRangeAddress[] ranges=new CellRangeAddress[numMergedRegions];
+		for(int i=0;i<numMergedRegions;i++) {
+			ranges[i]=sheet.getMergedRegion(i);
+		}
+		return ranges;
+	}
+
+	/**
+	 * 	XLSX：有删除时重建整个合并单元格列表，否则只追加新的合并单元格
+	 */
+	private static void writeRegions(XSSFSheet sheet,List<Region> regions,boolean rebuild) {
+		CTWorksheet worksheet = sheet.getCTWorksheet();
+		if(rebuild && worksheet.isSetMergeCells()) {
+			worksheet.unsetMergeCells();
+		}
+		CTMergeCells ctMergeCells=null;
+		for(Region region:regions) {
+			if(region.removed || (!rebuild && region.index!=-1)) continue;
+			if(ctMergeCells==null) {
+				ctMergeCells = worksheet.isSetMergeCells()?worksheet.getMergeCells():worksheet.addNewMergeCells();
+			}
+			ctMergeCells.addNewMergeCell().setRef(region.range.formatAsString());
+		}
+	}
+
+	private static void index(Map<Integer,List<Region>> buckets,Region region) {
+		for(int bucket=region.range.getFirstRow()>>BUCKET_SHIFT;bucket<=region.range.getLastRow()>>BUCKET_SHIFT;bucket++) {
+			List<Region> list = buckets.get(bucket);
+			if(list==null) {
+				list=new ArrayList<Region>();
+				buckets.put(bucket, list);
+			}
+			list.add(region);
+		}
+	}
+
+	private static boolean intersects(CellRangeAddress a,CellRangeAddress b) {
+		return a.getFirstRow()<=b.getLastRow() && b.getFirstRow()<=a.getLastRow()
+				&& a.getFirstColumn()<=b.getLastColumn() && b.getFirstColumn()<=a.getLastColumn();
+	}
+}
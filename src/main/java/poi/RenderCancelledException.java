@@ -0,0 +1,25 @@
+package poi;
+
+/**
+ * 输出被取消或超过截止时间
+ * @author xhc
+ *
+ */
+public class RenderCancelledException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final boolean timeout;
+
+	public RenderCancelledException(String message,boolean timeout) {
+		super(message);
+		this.timeout=timeout;
+	}
+
+	/**
+	 * 	是否因超过截止时间
+	 */
+	public boolean isTimeout() {
+		return timeout;
+	}
+}
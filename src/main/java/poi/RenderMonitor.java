@@ -0,0 +1,170 @@
+package poi;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 输出任务的进度、取消和截止时间
+ * 输出过程在每个模板行块复制后、以及序列化写出时检查，被取消或超时抛出 RenderCancelledException
+ * 可以被多个线程共用(分片并行输出)，cancel 可以在任意线程调用
+ * @author xhc
+ *
+ */
+public class RenderMonitor {
+
+	private RenderProgressListener listener;
+
+	/**
+	 * 两次进度回调的最小间隔(毫秒)
+	 */
+	private long reportInterval=1000;
+
+	private long expectedRows=-1;
+
+	/**
+	 * 截止时间(System.currentTimeMillis)，0为不限制
+	 */
+	private volatile long deadline;
+
+	private volatile boolean cancelled;
+
+	private final AtomicLong rows=new AtomicLong();
+
+	private final long startTime=System.currentTimeMillis();
+
+	private volatile long lastReport=startTime;
+
+	public RenderMonitor setListener(RenderProgressListener listener) {
+		this.listener=listener;
+		return this;
+	}
+
+	public RenderMonitor setReportInterval(long reportInterval) {
+		this.reportInterval=reportInterval;
+		return this;
+	}
+
+	/**
+	 * 	预计的总行数，用于计算剩余时间
+	 */
+	public RenderMonitor setExpectedRows(long expectedRows) {
+		this.expectedRows=expectedRows;
+		return this;
+	}
+
+	/**
+	 * 	截止时间(System.currentTimeMillis)
+	 */
+	public RenderMonitor setDeadline(long deadline) {
+		this.deadline=deadline;
+		return this;
+	}
+
+	/**
+	 * 	从现在开始的超时时间(毫秒)
+	 */
+	public RenderMonitor setTimeout(long timeoutMillis) {
+		return setDeadline(System.currentTimeMillis()+timeoutMillis);
+	}
+
+	/**
+	 * 	取消输出，输出线程在下一次检查时停止
+	 */
+	public void cancel() {
+		cancelled=true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * 	已输出的行数
+	 */
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * 	检查是否被取消或超时
+	 * @throws RenderCancelledException
+	 */
+	public void check() {
+		if(cancelled) {
+			throw new RenderCancelledException("输出已取消", false);
+		}
+		long deadline = this.deadline;
+		if(deadline!=0 && System.currentTimeMillis()>deadline) {
+			cancelled=true;
+			throw new RenderCancelledException("输出超过截止时间", true);
+		}
+	}
+
+	/**
+	 * 	一个块输出完成：累加行数，到达间隔时回调进度，然后检查是否被取消或超时
+	 * @param count 本块的行数
+	 * @throws RenderCancelledException
+	 */
+	public void rowsWritten(int count) {
+		long total = rows.addAndGet(count);
+		if(listener!=null) {
+			long now = System.currentTimeMillis();
+			if(now-lastReport>=reportInterval) {
+				lastReport=now;
+				report(total, now);
+			}
+		}
+		check();
+	}
+
+	/**
+	 * 	输出结束时回调最后一次进度
+	 */
+	public void finish() {
+		if(listener!=null) {
+			report(rows.get(), System.currentTimeMillis());
+		}
+	}
+
+	private void report(long total,long now) {
+		long elapsed = Math.max(1, now-startTime);
+		double rowsPerSecond = total*1000d/elapsed;
+		long eta=-1;
+		if(expectedRows>=0 && rowsPerSecond>0) {
+			eta=(long)(Math.max(0, expectedRows-total)*1000/rowsPerSecond);
+		}
+		listener.onProgress(total, rowsPerSecond, eta);
+	}
+
+	/**
+	 * 	包装输出流，每次写出前检查，使序列化也能被取消
+	 */
+	public OutputStream wrap(OutputStream os) {
+		return new FilterOutputStream(os) {
+			public void write(int b) throws IOException {
+				check();
+				out.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				check();
+				out.write(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * 	在异常的cause链里查找 RenderCancelledException (POI会把输出流抛出的异常包装起来)
+	 * @return 没有时返回null
+	 */
+	static RenderCancelledException findCancelled(Throwable e) {
+		for(int i=0;e!=null && i<16;e=e.getCause(),i++) {
+			if(e instanceof RenderCancelledException) {
+				return (RenderCancelledException)e;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,16 @@
+package poi;
+
+/**
+ * 输出进度的回调，在执行输出的线程里调用(分片并行输出时为工作线程)，应尽快返回
+ * @author xhc
+ *
+ */
+public interface RenderProgressListener {
+
+	/**
+	 * @param rows 已输出的行数
+	 * @param rowsPerSecond 从开始到现在的平均每秒行数
+	 * @param etaMillis 预计剩余毫秒数，未设置总行数时为-1
+	 */
+	void onProgress(long rows,double rowsPerSecond,long etaMillis);
+}
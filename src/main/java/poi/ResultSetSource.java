@@ -0,0 +1,239 @@
+package poi;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 将ResultSet逐行转为模板数据，不需要先把全部结果读入List
+ * 列名(label)在创建时一次性转换为占位符的key；prefetch大于0时由后台线程预读，最多缓存prefetch行，
+ * 数据库读取和写Sheet可以同时进行
+ * 注意：next()返回的Map会被复用，只在下一次调用next()之前有效；
+ * 预读时没有读到最后就停止的，必须调用close()，否则后台线程会一直阻塞在已满的队列上(appendTo会自动close)
+ * @author xhc
+ *
+ */
+public class ResultSetSource implements Iterator<Map<String,Object>> {
+
+	/**
+	 * 预读结束的标记
+	 */
+	private static final Object[] END=new Object[0];
+
+	private final ResultSet resultSet;
+
+	private final String[] keys;
+
+	private final Map<String,Object> current;
+
+	private final BlockingQueue<Object[]> queue;
+
+	private Thread reader;
+
+	private volatile Throwable error;
+
+	private volatile boolean closed;
+
+	/**
+	 * 下一行是否已读取(同步读取时)或已取出(预读时)
+	 */
+	private boolean fetched;
+
+	private boolean hasNext;
+
+	private Object[] next;
+
+	/**
+	 * 读取失败时抛出的异常，之后每次调用 hasNext/next 都再次抛出
+	 */
+	private Throwable failure;
+
+	public ResultSetSource(ResultSet resultSet) throws SQLException {
+		this(resultSet,0,0,null);
+	}
+
+	/**
+	 * @param resultSet
+	 * @param fetchSize 每次从数据库获取的行数，0为驱动默认
+	 * @param prefetch 后台预读缓存的最大行数，0为不预读(在调用线程里读取)
+	 * @param keyMapping 列名(label)到占位符key的映射，没有映射的列使用列名，可以为null
+	 * @throws SQLException
+	 */
+	public ResultSetSource(ResultSet resultSet,int fetchSize,int prefetch,Map<String,String> keyMapping) throws SQLException {
+		this.resultSet=resultSet;
+		if(fetchSize!=0) {
+			resultSet.setFetchSize(fetchSize);
+		}
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		this.keys=new String[metaData.getColumnCount()];
+		for(int i=0;i<keys.length;i++) {
+			String label = metaData.getColumnLabel(i+1);
+			String key = keyMapping==null?null:keyMapping.get(label);
+			keys[i]=key==null?label:key;
+		}
+		this.current=new HashMap<String, Object>(keys.length*2);
+		if(prefetch>0) {
+			this.queue=new ArrayBlockingQueue<Object[]>(prefetch);
+			startReader();
+		}else {
+			this.queue=null;
+		}
+	}
+
+	/**
+	 * 	启动后台预读线程，队列满时阻塞等待；任何异常都会记录下来并放入结束标记，由读取方抛出
+	 * 	不使用中断停止(部分驱动在I/O中被中断会损坏连接)，close时清空队列使其退出
+	 */
+	private void startReader() {
+		reader=new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(!closed && resultSet.next()) {
+						queue.put(readRow());
+					}
+				} catch (Throwable e) {
+					error=e;
+				} finally {
+					if(!closed) {
+						try {
+							queue.put(END);
+						} catch (InterruptedException e) {
+							// 不会被中断
+						}
+					}
+				}
+			}
+		}, "ResultSetSource");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private Object[] readRow() throws SQLException {
+		Object[] row=new Object[keys.length];
+		for(int i=0;i<row.length;i++) {
+			row[i]=resultSet.getObject(i+1);
+		}
+		return row;
+	}
+
+	public boolean hasNext() {
+		if(failure!=null) {
+			throwFailure();
+		}
+		if(!fetched) {
+			fetch();
+			fetched=true;
+		}
+		return hasNext;
+	}
+
+	private void fetch() {
+		if(closed) {
+			hasNext=false;
+			return;
+		}
+		try {
+			if(queue==null) {
+				hasNext=resultSet.next();
+				next=hasNext?readRow():null;
+				return;
+			}
+			next=queue.take();
+			hasNext= next!=END;
+			Throwable error = this.error;
+			if(!hasNext && error!=null && !closed) {
+				fail(error);
+			}
+		} catch (SQLException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("读取ResultSet被中断", e);
+		}
+	}
+
+	/**
+	 * 	读取失败：先记录结束状态再抛出(结束标记已从队列取出，后台线程已退出，不能再次读取)
+	 */
+	private void fail(Throwable error) {
+		fetched=true;
+		hasNext=false;
+		next=null;
+		failure= error instanceof Error?error:new IllegalStateException("读取ResultSet失败", error);
+		throwFailure();
+	}
+
+	private void throwFailure() {
+		if(failure instanceof Error) throw (Error)failure;
+		throw (RuntimeException)failure;
+	}
+
+	/**
+	 * 	返回下一行，Map会被复用
+	 */
+	public Map<String,Object> next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		fetched=false;
+		current.clear();
+		for(int i=0;i<keys.length;i++) {
+			current.put(keys[i], next[i]);
+		}
+		return current;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * 	停止读取，不关闭ResultSet；预读时等待后台线程结束后返回(正在执行的 ResultSet.next() 完成之后)，
+	 * 	之后可以安全地关闭ResultSet和连接
+	 */
+	public void close() {
+		closed=true;
+		if(reader==null) return;
+		//清空队列，阻塞在put上的后台线程放入最多一行后看到closed退出
+		queue.clear();
+		boolean interrupted=false;
+		while(reader.isAlive()) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				interrupted=true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		queue.clear();
+		//唤醒在其它线程里阻塞在take上的读取方
+		queue.offer(END);
+	}
+
+	/**
+	 * 	将全部行用指定模板行追加到目标Sheet(同 ExcelOperate.appendCopyRow)
+	 * @param operate
+	 * @param originRow
+	 * @return 行数
+	 */
+	public int appendTo(ExcelOperate operate,int originRow) {
+		int count=0;
+		try {
+			while(hasNext()) {
+				operate.appendCopyRow(originRow, next());
+				count++;
+			}
+		}finally {
+			close();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,502 @@
+package poi;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * 分片并行输出一个超大的XLSX报表：每个分片用同一个模板在各自的线程里输出工作表的行XML，并在该线程里压缩，
+ * 全部完成后按顺序把压缩后的字节拼接到同一个工作表条目里，拼接时不再解压、平移或压缩
+ * 事先知道各分片的起始行时分片直接输出最终的行号；否则第一个分片直接输出，其余分片先输出未压缩的XML(行号从0开始)，
+ * 全部完成后在工作线程里平移行号和合并单元格并压缩
+ * 模板包的其它部分同 XlsxDirectWriter 原样复制
+ * 分段压缩使用 Deflater.SYNC_FLUSH，需要Java 7及以上的运行环境
+ * @author xhc
+ *
+ */
+public class ShardedXlsxRenderer {
+
+	/**
+	 * 结束时等待分片线程退出的最长秒数
+	 */
+	private static final int TERMINATION_TIMEOUT=10;
+
+	private final ExcelTemplate template;
+
+	private final int threads;
+
+	private RenderMonitor renderMonitor;
+
+	/**
+	 * 	一个分片的输出逻辑，在工作线程里执行
+	 * @author xhc
+	 *
+	 */
+	public static interface Shard{
+		void render(ShardWriter writer) throws IOException;
+	}
+
+	/**
+	 * 	分片的输出，行号从0开始，拼接时平移
+	 * @author xhc
+	 *
+	 */
+	public static class ShardWriter{
+		private final SheetXmlRenderer renderer;
+
+		private final RenderMonitor renderMonitor;
+
+		ShardWriter(SheetXmlRenderer renderer,RenderMonitor renderMonitor) {
+			this.renderer=renderer;
+			this.renderMonitor=renderMonitor;
+		}
+
+		/**
+		 * 	追加复制模板行(同 ExcelOperate.appendCopyRow)，其它分片失败或输出被取消时抛出异常
+		 */
+		public void appendRow(int originRow,Map<String,Object> data) throws IOException {
+			if(Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("分片输出已停止");
+			}
+			if(renderMonitor==null) {
+				renderer.appendRow(originRow, data);
+				return;
+			}
+			renderMonitor.check();
+			int firstRow = renderer.getNextRow();
+			renderer.appendRow(originRow, data);
+			renderMonitor.rowsWritten(renderer.getNextRow()-firstRow);
+		}
+
+		/**
+		 * 	分片内下一次追加的起始行(从0开始)
+		 */
+		public int getNextAppendRow() {
+			return renderer.getNextRow();
+		}
+
+		/**
+		 * 	添加合并单元格(分片内的行号)
+		 */
+		public void addMergedRegion(CellRangeAddress cellRangeAddress) {
+			renderer.addMergedRegion(cellRangeAddress);
+		}
+	}
+
+	/**
+	 * 	分片的输出结果
+	 */
+	private static class ShardResult{
+		private final File file;
+		/**
+		 * 压缩后的分段，为null时file是未压缩的XML
+		 */
+		private final ZipSegmentWriter.Segment segment;
+		private final int firstRow;
+		private final int rowCount;
+		private final List<CellRangeAddress> mergedRegions;
+
+		ShardResult(File file,ZipSegmentWriter.Segment segment,int firstRow,int rowCount,List<CellRangeAddress> mergedRegions) {
+			this.file=file;
+			this.segment=segment;
+			this.firstRow=firstRow;
+			this.rowCount=rowCount;
+			this.mergedRegions=mergedRegions;
+		}
+	}
+
+	/**
+	 * 	一次render的全部临时文件，结束后统一删除
+	 * 	结束(close)之后才完成的分片自己删除临时文件
+	 */
+	private static class TempFiles{
+		private final List<File> files=new ArrayList<File>();
+		private boolean closed;
+
+		/**
+		 * 	创建并登记临时文件，已结束时不创建
+		 */
+		File create(String suffix) throws IOException {
+			File file = File.createTempFile("shard", suffix);
+			if(!add(file)) {
+				file.delete();
+				throw new InterruptedIOException("分片输出已停止");
+			}
+			return file;
+		}
+
+		private synchronized boolean add(File file) {
+			if(closed) return false;
+			files.add(file);
+			return true;
+		}
+
+		synchronized boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * 	结束并返回已登记的文件
+		 */
+		synchronized List<File> close() {
+			closed=true;
+			return new ArrayList<File>(files);
+		}
+	}
+
+	/**
+	 * @param template XLSX模板
+	 * @param threads 并行的线程数
+	 */
+	public ShardedXlsxRenderer(ExcelTemplate template,int threads) {
+		if(template.getSuffix()!=ExcelSuffix.XLSX) {
+			throw new IllegalArgumentException("只支持XLSX模板:"+template.getPath());
+		}
+		this.template=template;
+		this.threads=threads;
+	}
+
+	/**
+	 * 	设置后各分片每追加一个模板行块、以及拼接输出时检查是否被取消或超时，
+	 * 	被取消时停止全部分片、删除临时文件并抛出 RenderCancelledException
+	 * @param renderMonitor 各分片共用
+	 */
+	public void setRenderMonitor(RenderMonitor renderMonitor) {
+		this.renderMonitor=renderMonitor;
+	}
+
+	/**
+	 * 	每个分片的每条数据都用 originRow 输出
+	 * 	分片都是 Collection 时按数据条数事先算出各分片的起始行，分片直接输出最终的行号，不需要再平移
+	 * @param originRow
+	 * @param shards 按顺序的分片数据，输出时不能被修改
+	 * @param os 不会被关闭
+	 * @throws IOException
+	 */
+	public void render(final int originRow,List<? extends Iterable<Map<String,Object>>> shards,OutputStream os) throws IOException {
+		int[] coordinate = template.getPlan().getRowContainsMerged(originRow);
+		int blockRows = coordinate[3]-coordinate[1]+1;
+		int[] firstRows=new int[shards.size()];
+		long row=0;
+		List<Shard> list=new ArrayList<Shard>(shards.size());
+		for(int i=0;i<shards.size();i++) {
+			final Iterable<Map<String,Object>> data=shards.get(i);
+			if(firstRows!=null && data instanceof Collection) {
+				firstRows[i]=(int)row;
+				row+=(long)((Collection<?>)data).size()*blockRows;
+				if(row>SheetXmlRenderer.MAX_ROWS) {
+					throw new IllegalStateException("超出XLSX的最大行数:"+SheetXmlRenderer.MAX_ROWS);
+				}
+			}else {
+				firstRows=null;
+			}
+			list.add(new Shard() {
+				public void render(ShardWriter writer) throws IOException {
+					for(Map<String,Object> record:data) {
+						writer.appendRow(originRow, record);
+					}
+				}
+			});
+		}
+		render(list, firstRows, os);
+	}
+
+	/**
+	 * 	并行输出全部分片，再按顺序拼接
+	 * @param shards
+	 * @param os 不会被关闭
+	 * @throws IOException
+	 */
+	public void render(List<Shard> shards,OutputStream os) throws IOException {
+		render(shards, null, os);
+	}
+
+	/**
+	 * @param firstRows 各分片的起始行，null为事先未知(分片从0开始输出，完成后平移)
+	 */
+	private void render(List<Shard> shards,int[] firstRows,OutputStream os) throws IOException {
+		final TemplatePlan plan = template.getPlan();
+		final RenderMonitor renderMonitor=this.renderMonitor;
+		if(renderMonitor!=null) {
+			renderMonitor.check();
+			os=renderMonitor.wrap(os);
+		}
+		String sheetEntry = plan.getSheetPartName().substring(1);
+		ZipSegmentWriter zip=new ZipSegmentWriter(os);
+		XlsxDirectWriter.SheetParts sheetParts=new XlsxDirectWriter.SheetParts(XlsxDirectWriter.copyPackage(template.getContent(), sheetEntry, zip));
+		final String ns=sheetParts.ns;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards.size())));
+		List<Future<ShardResult>> futures=new ArrayList<Future<ShardResult>>(shards.size());
+		List<ShardResult> results=new ArrayList<ShardResult>(shards.size());
+		final TempFiles tempFiles=new TempFiles();
+		try {
+			for(int i=0;i<shards.size();i++) {
+				final Shard shard=shards.get(i);
+				final int firstRow = firstRows==null?0:firstRows[i];
+				//起始行未知的分片(第一个分片除外)先不压缩，平移行号时再压缩
+				final boolean compress = firstRows!=null || i==0;
+				futures.add(executor.submit(new Callable<ShardResult>() {
+					public ShardResult call() throws Exception {
+						return renderShard(plan, ns, shard, firstRow, compress, renderMonitor, tempFiles);
+					}
+				}));
+			}
+			for(Future<ShardResult> future:futures) {
+				results.add(getResult(future, renderMonitor));
+			}
+
+			//按前面分片的行数平移，在工作线程里进行
+			futures.clear();
+			int offset=0;
+			for(final ShardResult result:results) {
+				if((long)offset+result.rowCount>SheetXmlRenderer.MAX_ROWS) {
+					throw new IllegalStateException("超出XLSX的最大行数:"+SheetXmlRenderer.MAX_ROWS);
+				}
+				if(result.segment!=null) {
+					if(result.firstRow!=offset) {
+						throw new IllegalStateException("分片的行数与数据条数不同，分片数据在输出时被修改");
+					}
+					futures.add(null);
+				}else {
+					final int rowOffset=offset;
+					futures.add(executor.submit(new Callable<ShardResult>() {
+						public ShardResult call() throws Exception {
+							return rebaseShard(result, rowOffset, tempFiles);
+						}
+					}));
+				}
+				offset+=result.rowCount;
+			}
+			for(int i=0;i<futures.size();i++) {
+				if(futures.get(i)!=null) {
+					results.set(i, getResult(futures.get(i), renderMonitor));
+				}
+			}
+
+			//各段都已压缩，拼接只复制字节
+			List<CellRangeAddress> mergedRegions=new ArrayList<CellRangeAddress>();
+			List<ZipSegmentWriter.Segment> segments=new ArrayList<ZipSegmentWriter.Segment>(results.size()+2);
+			ByteArrayOutputStream start=new ByteArrayOutputStream();
+			segments.add(writeSegment(start, sheetParts, null));
+			for(ShardResult result:results) {
+				segments.add(result.segment);
+				mergedRegions.addAll(result.mergedRegions);
+			}
+			ByteArrayOutputStream end=new ByteArrayOutputStream();
+			segments.add(writeSegment(end, sheetParts, mergedRegions));
+
+			zip.putSegmentedEntry(sheetEntry, segments);
+			zip.writeRaw(start.toByteArray(), 0, start.size());
+			byte[] buffer=new byte[65536];
+			for(ShardResult result:results) {
+				InputStream is=new FileInputStream(result.file);
+				try {
+					int read;
+					while((read=is.read(buffer))!=-1) {
+						zip.writeRaw(buffer, 0, read);
+					}
+				}finally {
+					is.close();
+				}
+			}
+			zip.writeRaw(end.toByteArray(), 0, end.size());
+			zip.closeEntry();
+			zip.finish();
+			if(renderMonitor!=null) renderMonitor.finish();
+		}finally {
+			//停止未完成的分片并等待退出，再删除全部临时文件(包括已完成但尚未拼接、以及被取消后仍完成的分片)
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for(File file:tempFiles.close()) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * 	压缩工作表 sheetData 之前(mergedRegions为null)或之后的部分
+	 */
+	private static ZipSegmentWriter.Segment writeSegment(ByteArrayOutputStream bos,XlsxDirectWriter.SheetParts sheetParts,List<CellRangeAddress> mergedRegions) throws IOException {
+		ZipSegmentWriter.Segment segment=new ZipSegmentWriter.Segment(bos);
+		Writer writer=new OutputStreamWriter(segment, "UTF-8");
+		if(mergedRegions==null) {
+			sheetParts.writeStart(writer);
+		}else {
+			sheetParts.writeEnd(writer, mergedRegions);
+		}
+		writer.close();
+		return segment;
+	}
+
+	/**
+	 * 	在工作线程里输出一个分片到临时文件
+	 * @param firstRow 分片的起始行
+	 * @param compress 是否压缩为 Segment，否则输出未压缩的XML
+	 */
+	private static ShardResult renderShard(TemplatePlan plan,String ns,Shard shard,int firstRow,boolean compress,RenderMonitor renderMonitor,TempFiles tempFiles) throws IOException {
+		File file = tempFiles.create(compress?".deflate":".xml");
+		boolean success=false;
+		try {
+			OutputStream os=new FileOutputStream(file);
+			ZipSegmentWriter.Segment segment=null;
+			if(compress) {
+				segment=new ZipSegmentWriter.Segment(os);
+				os=segment;
+			}
+			Writer writer=new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 65536);
+			SheetXmlRenderer renderer=new SheetXmlRenderer(plan, ns, writer, firstRow);
+			try {
+				shard.render(new ShardWriter(renderer, renderMonitor));
+			}finally {
+				writer.close();
+			}
+			success=true;
+			return new ShardResult(file, segment, firstRow, renderer.getNextRow()-firstRow, renderer.getMergedRegions());
+		}finally {
+			//render已结束(等待超时)时不会再被删除，自己删除
+			if(!success || tempFiles.isClosed()) file.delete();
+		}
+	}
+
+	/**
+	 * 	在工作线程里平移未压缩分片的行号和合并单元格，并压缩到新的临时文件
+	 */
+	private static ShardResult rebaseShard(ShardResult result,int firstRow,TempFiles tempFiles) throws IOException {
+		File file = tempFiles.create(".deflate");
+		boolean success=false;
+		try {
+			int offset = firstRow-result.firstRow;
+			ZipSegmentWriter.Segment segment=new ZipSegmentWriter.Segment(new FileOutputStream(file));
+			Writer writer=new BufferedWriter(new OutputStreamWriter(segment, "UTF-8"), 65536);
+			try {
+				Reader reader=new InputStreamReader(new FileInputStream(result.file), "UTF-8");
+				try {
+					copyRebased(reader, writer, offset, new char[65536]);
+				}finally {
+					reader.close();
+				}
+			}finally {
+				writer.close();
+			}
+			List<CellRangeAddress> mergedRegions=new ArrayList<CellRangeAddress>(result.mergedRegions.size());
+			for(CellRangeAddress region:result.mergedRegions) {
+				mergedRegions.add(new CellRangeAddress(region.getFirstRow()+offset, region.getLastRow()+offset, region.getFirstColumn(), region.getLastColumn()));
+			}
+			success=true;
+			//未压缩的临时文件不再需要
+			result.file.delete();
+			return new ShardResult(file, segment, firstRow, result.rowCount, mergedRegions);
+		}finally {
+			if(!success || tempFiles.isClosed()) file.delete();
+		}
+	}
+
+	/**
+	 * 	等待分片完成，设置了 renderMonitor 时定期检查是否被取消或超时
+	 */
+	private static ShardResult getResult(Future<ShardResult> future,RenderMonitor renderMonitor) throws IOException {
+		try {
+			if(renderMonitor==null) {
+				return future.get();
+			}
+			while(true) {
+				renderMonitor.check();
+				try {
+					return future.get(100, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// 继续等待
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("分片输出被中断");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if(cause instanceof Error) throw (Error)cause;
+			throw new IOException(cause.getMessage());
+		}
+	}
+
+	/**
+	 * 	复制分片的行XML，将 r="..." 里的行号加上offset
+	 * 	(分片里的文本内容已转义双引号，r=" 只会出现在 row/c 的属性里)
+	 */
+	static void copyRebased(Reader reader,Writer writer,int offset,char[] buffer) throws IOException {
+		final char[] marker={' ','r','=','"'};
+		int matched=0;
+		boolean inRef=false;
+		int number=0;
+		boolean hasNumber=false;
+		int read;
+		while((read=reader.read(buffer))!=-1) {
+			if(Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("分片输出已停止");
+			}
+			int start=0;
+			for(int i=0;i<read;i++) {
+				char c = buffer[i];
+				if(inRef) {
+					if(c>='0' && c<='9') {
+						number=number*10+(c-'0');
+						hasNumber=true;
+						start=i+1;
+					}else if(c=='"') {
+						if(hasNumber) writer.write(Integer.toString(number+offset));
+						inRef=false;
+						start=i;
+					}else {
+						writer.write(c);
+						start=i+1;
+					}
+				}else if(c==marker[matched]) {
+					matched++;
+					if(matched==marker.length) {
+						writer.write(buffer, start, i+1-start);
+						start=i+1;
+						matched=0;
+						inRef=true;
+						number=0;
+						hasNumber=false;
+					}
+				}else {
+					matched= c==marker[0]?1:0;
+				}
+			}
+			if(!inRef) {
+				writer.write(buffer, start, read-start);
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package poi;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+
+import poi.TemplatePlan.CellPlan;
+import poi.TemplatePlan.RowPlan;
+
+/**
+ * 按模板行直接输出XLSX工作表的 &lt;row&gt; XML，取值规则与 ExcelOperate.appendCopyRow 一致
+ * 样式下标和共享字符串下标沿用模板的，数据里的字符串写为内联字符串
+ * @author xhc
+ *
+ */
+class SheetXmlRenderer {
+
+	/**
+	 * XLSX的最大行数
+	 */
+	static final int MAX_ROWS=1048576;
+
+	private final TemplatePlan plan;
+
+	/**
+	 * 元素的命名空间前缀(如 "x:")，默认命名空间时为""
+	 */
+	private final String ns;
+
+	private final Writer out;
+
+	private int nextRow;
+
+	private final List<CellRangeAddress> mergedRegions=new ArrayList<CellRangeAddress>();
+
+	private String[] columnNames=new String[32];
+
+	SheetXmlRenderer(TemplatePlan plan,String ns,Writer out,int firstRow) {
+		this.plan=plan;
+		this.ns=ns;
+		this.out=out;
+		this.nextRow=firstRow;
+	}
+
+	/**
+	 * 	下一次追加的行(从0开始)
+	 */
+	int getNextRow() {
+		return nextRow;
+	}
+
+	/**
+	 * 	已输出的合并单元格
+	 */
+	List<CellRangeAddress> getMergedRegions() {
+		return mergedRegions;
+	}
+
+	void addMergedRegion(CellRangeAddress cellRangeAddress) {
+		mergedRegions.add(cellRangeAddress);
+	}
+
+	/**
+	 * 	追加输出模板行，该行包含合并单元格时输出合并单元格所占的全部行
+	 * @param originRow
+	 * @param data
+	 * @throws IOException
+	 */
+	void appendRow(int originRow,Map<String,Object> data) throws IOException {
+		int[] coordinate = plan.getRowContainsMerged(originRow);
+		int offset = nextRow-coordinate[1];
+		if(coordinate[3]+offset>=MAX_ROWS) {
+			throw new IllegalStateException("超出XLSX的最大行数:"+MAX_ROWS);
+		}
+		for(int rowY=coordinate[1];rowY<=coordinate[3];rowY++,nextRow++) {
+			RowPlan rowPlan = plan.getRow(rowY);
+			if(rowPlan==null) continue;
+			String rowName = Integer.toString(nextRow+1);
+			out.write('<');
+			out.write(ns);
+			out.write("row r=\"");
+			out.write(rowName);
+			out.write("\" ht=\"");
+			out.write(Float.toString(rowPlan.getHeightInPoints()));
+			out.write("\" customHeight=\"1\">");
+			int lastColumn = plan.getLastColumn(rowY);
+			for(int colX=rowPlan.getFirstCellNum();colX<=lastColumn;colX++) {
+				CellPlan cell = rowPlan.getCell(colX);
+				if(cell==null) continue;
+				int mergedRegionIndex = plan.getMergedRegionIndex(rowY, colX);
+				if(mergedRegionIndex!=-1) {
+					int[] region = plan.getMergedRegionBounds(mergedRegionIndex);
+					if(rowY!=region[0] || colX!=region[2]) {
+						writeCell(rowName, colX, cell, null, false);
+						continue;
+					}
+					mergedRegions.add(new CellRangeAddress(region[0]+offset, region[1]+offset, region[2], region[3]));
+					Object value = ExcelOperate.resolveMergedValue(cell.getValue(), cell.getAllKey(), data);
+					if(data!=null && value!=null) {
+						writeCell(rowName, colX, cell, value, false);
+					}else {
+						writeCell(rowName, colX, cell, null, true);
+					}
+				}else if(data!=null && cell.getKey()!=null) {
+					writeCell(rowName, colX, cell, data.get(cell.getKey()), false);
+				}else {
+					writeCell(rowName, colX, cell, null, true);
+				}
+			}
+			out.write("</");
+			out.write(ns);
+			out.write("row>");
+		}
+	}
+
+	/**
+	 * 	输出单元格
+	 * @param rowName 行号(从1开始)
+	 * @param col
+	 * @param cell 模板单元格
+	 * @param value 数据值
+	 * @param literal 是否输出模板单元格本身的值
+	 * @throws IOException
+	 */
+	private void writeCell(String rowName,int col,CellPlan cell,Object value,boolean literal) throws IOException {
+		out.write('<');
+		out.write(ns);
+		out.write("c r=\"");
+		out.write(getColumnName(col));
+		out.write(rowName);
+		out.write('"');
+		if(cell.getStyleIndex()!=0) {
+			out.write(" s=\"");
+			out.write(Integer.toString(cell.getStyleIndex()));
+			out.write('"');
+		}
+		if(literal) {
+			switch (cell.getCellType()) {
+				case Cell.CELL_TYPE_STRING:
+					if(cell.getSharedStringIndex()!=-1) {
+						out.write(" t=\"s\">");
+						writeElement("v", Integer.toString(cell.getSharedStringIndex()));
+					}else {
+						writeInlineString(cell.getValue());
+					}
+					break;
+				case Cell.CELL_TYPE_NUMERIC:
+					out.write('>');
+					writeElement("v", formatNumber(Double.parseDouble(cell.getValue())));
+					break;
+				case Cell.CELL_TYPE_BOOLEAN:
+					out.write(" t=\"b\">");
+					writeElement("v", Boolean.parseBoolean(cell.getValue())?"1":"0");
+					break;
+				case Cell.CELL_TYPE_FORMULA:
+					out.write('>');
+					writeElement("f", cell.getValue());
+					break;
+				default:
+					out.write("/>");
+					return;
+			}
+		}else if(value instanceof String) {
+			writeInlineString((String)value);
+		}else if(value instanceof Number) {
+			double d = ((Number)value).doubleValue();
+			if(Double.isNaN(d) || Double.isInfinite(d)) {
+				//同 POI 的 setCellValue(double)：NaN为#NUM!，无穷大为#DIV/0!
+				out.write(" t=\"e\">");
+				writeElement("v", Double.isNaN(d)?"#NUM!":"#DIV/0!");
+			}else {
+				out.write('>');
+				writeElement("v", formatNumber(d));
+			}
+		}else {
+			out.write("/>");
+			return;
+		}
+		out.write("</");
+		out.write(ns);
+		out.write("c>");
+	}
+
+	private void writeInlineString(String value) throws IOException {
+		out.write(" t=\"inlineStr\"><");
+		out.write(ns);
+		out.write("is><");
+		out.write(ns);
+		out.write("t xml:space=\"preserve\">");
+		escape(out, value);
+		out.write("</");
+		out.write(ns);
+		out.write("t></");
+		out.write(ns);
+		out.write("is>");
+	}
+
+	private void writeElement(String name,String text) throws IOException {
+		out.write('<');
+		out.write(ns);
+		out.write(name);
+		out.write('>');
+		escape(out, text);
+		out.write("</");
+		out.write(ns);
+		out.write(name);
+		out.write('>');
+	}
+
+	private String getColumnName(int col) {
+		if(col>=columnNames.length) {
+			String[] names=new String[Math.max(col+1, columnNames.length*2)];
+			System.arraycopy(columnNames, 0, names, 0, columnNames.length);
+			columnNames=names;
+		}
+		String name = columnNames[col];
+		if(name==null) {
+			name=CellReference.convertNumToColString(col);
+			columnNames[col]=name;
+		}
+		return name;
+	}
+
+	/**
+	 * 	输出合并单元格 &lt;mergeCells&gt;，没有时不输出
+	 */
+	static void writeMergeCells(Writer out,String ns,List<CellRangeAddress> mergedRegions) throws IOException {
+		if(mergedRegions.isEmpty()) return;
+		out.write('<');
+		out.write(ns);
+		out.write("mergeCells count=\"");
+		out.write(Integer.toString(mergedRegions.size()));
+		out.write("\">");
+		for(CellRangeAddress mergedRegion:mergedRegions) {
+			out.write('<');
+			out.write(ns);
+			out.write("mergeCell ref=\"");
+			out.write(mergedRegion.formatAsString());
+			out.write("\"/>");
+		}
+		out.write("</");
+		out.write(ns);
+		out.write("mergeCells>");
+	}
+
+	/**
+	 * 	整数不输出小数部分
+	 */
+	static String formatNumber(double d) {
+		if(d==Math.rint(d) && Math.abs(d)<1e15) {
+			return Long.toString((long)d);
+		}
+		return Double.toString(d);
+	}
+
+	/**
+	 * 	XML转义，并去掉XML不允许的控制字符
+	 */
+	static void escape(Writer out,String text) throws IOException {
+		int length = text.length();
+		for(int i=0;i<length;i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '&':
+					out.write("&amp;");
+					break;
+				case '<':
+					out.write("&lt;");
+					break;
+				case '>':
+					out.write("&gt;");
+					break;
+				case '"':
+					out.write("&quot;");
+					break;
+				default:
+					if(c>=0x20 || c=='\t' || c=='\n' || c=='\r') {
+						out.write(c);
+					}
+			}
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package poi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+/**
+ * 模板Sheet的解析结果(只读)：合并单元格、行高、列宽、单元格的值/样式索引/占位符Key
+ * 可以序列化为紧凑的二进制快照，加载时无需解析XML
+ * @author xhc
+ *
+ */
+public final class TemplatePlan {
+
+	/**
+	 * 快照文件头 "XTP1"
+	 */
+	static final int MAGIC=0x58545031;
+
+	static final int VERSION=2;
+
+	/**
+	 * 合并单元格范围 {firstRow,lastRow,firstColumn,lastColumn}，顺序与源Sheet的下标一致
+	 */
+	private final int[][] mergedRegions;
+
+	/**
+	 * 每一行所涉及的合并单元格下标(升序)
+	 */
+	private final int[][] rowMergedRegions;
+
+	private final RowPlan[] rows;
+
+	private final int[] columnWidths;
+
+	/**
+	 * XLSX模板Sheet在包里的路径(如 /xl/worksheets/sheet1.xml)，XLS为null
+	 */
+	private final String sheetPartName;
+
+	private TemplatePlan(int[][] mergedRegions,RowPlan[] rows,int[] columnWidths,String sheetPartName) {
+		this.mergedRegions=mergedRegions;
+		this.rows=rows;
+		this.columnWidths=columnWidths;
+		this.sheetPartName=sheetPartName;
+		int rowCount=rows.length;
+		for(int[] region:mergedRegions) {
+			rowCount=Math.max(rowCount, region[1]+1);
+		}
+		List<List<Integer>> index=new ArrayList<List<Integer>>(rowCount);
+		for(int i=0;i<rowCount;i++) {
+			index.add(null);
+		}
+		for(int i=0;i<mergedRegions.length;i++) {
+			for(int row=mergedRegions[i][0];row<=mergedRegions[i][1];row++) {
+				List<Integer> list = index.get(row);
+				if(list==null) {
+					list=new ArrayList<Integer>(2);
+					index.set(row, list);
+				}
+				list.add(i);
+			}
+		}
+		this.rowMergedRegions=new int[rowCount][];
+		for(int row=0;row<rowCount;row++) {
+			List<Integer> list = index.get(row);
+			if(list==null) continue;
+			int[] r=new int[list.size()];
+			for(int i=0;i<r.length;i++) {
+				r[i]=list.get(i);
+			}
+			rowMergedRegions[row]=r;
+		}
+	}
+
+	/**
+	 * 模板行
+	 */
+	public static final class RowPlan {
+		private final short height;
+		private final float heightInPoints;
+		private final int firstCellNum;
+		private final CellPlan[] cells;
+
+		RowPlan(short height,float heightInPoints,int firstCellNum,CellPlan[] cells) {
+			this.height=height;
+			this.heightInPoints=heightInPoints;
+			this.firstCellNum=firstCellNum;
+			this.cells=cells;
+		}
+
+		public short getHeight() {
+			return height;
+		}
+
+		public float getHeightInPoints() {
+			return heightInPoints;
+		}
+
+		public int getFirstCellNum() {
+			return firstCellNum;
+		}
+
+		/**
+		 * 	最后一个单元格的列号+1(同 Row.getLastCellNum)
+		 */
+		public int getLastCellNum() {
+			return firstCellNum+cells.length;
+		}
+
+		/**
+		 * 	获取指定列的单元格，不存在时返回null
+		 */
+		public CellPlan getCell(int col) {
+			int i=col-firstCellNum;
+			if(i<0 || i>=cells.length) return null;
+			return cells[i];
+		}
+	}
+
+	/**
+	 * 模板单元格
+	 */
+	public static final class CellPlan {
+		private final int col;
+		private final int cellType;
+		private final String value;
+		private final short styleIndex;
+		private final String key;
+		private final String[] allKey;
+		private final int sharedStringIndex;
+
+		CellPlan(int col,int cellType,String value,short styleIndex,int sharedStringIndex) {
+			this.col=col;
+			this.cellType=cellType;
+			this.value=value;
+			this.styleIndex=styleIndex;
+			this.sharedStringIndex=sharedStringIndex;
+			this.key=ExcelOperate.patternKey(value);
+			this.allKey=ExcelOperate.allKeys(value);
+		}
+
+		public int getColumn() {
+			return col;
+		}
+
+		public int getCellType() {
+			return cellType;
+		}
+
+		/**
+		 * 	单元格的值(同 ExcelOperate.getCellValue)
+		 */
+		public String getValue() {
+			return value;
+		}
+
+		public short getStyleIndex() {
+			return styleIndex;
+		}
+
+		/**
+		 * 	整个单元格为 #key# 时的key，否则为null
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * 	单元格里的全部 #key#
+		 */
+		public String[] getAllKey() {
+			return allKey;
+		}
+
+		/**
+		 * 	XLSX模板里字符串在共享字符串表的下标，没有时为-1
+		 */
+		public int getSharedStringIndex() {
+			return sharedStringIndex;
+		}
+	}
+
+	/**
+	 * 	解析指定的模板Sheet
+	 * @param sheet
+	 * @return
+	 */
+	public static TemplatePlan compile(Sheet sheet) {
+		int numMergedRegions = sheet.getNumMergedRegions();
+		int[][] mergedRegions=new int[numMergedRegions][];
+		for(int i=0;i<numMergedRegions;i++) {
+			CellRangeAddress mergedRegion = sheet.getMergedRegion(i);
+			mergedRegions[i]=new int[] {mergedRegion.getFirstRow(),mergedRegion.getLastRow(),mergedRegion.getFirstColumn(),mergedRegion.getLastColumn()};
+		}
+
+		int maxColumn=-1;
+		RowPlan[] rows=new RowPlan[sheet.getPhysicalNumberOfRows()==0?0:sheet.getLastRowNum()+1];
+		for(int y=0;y<rows.length;y++) {
+			Row row = sheet.getRow(y);
+			if(row==null || row.getFirstCellNum()<0) continue;
+			int firstCellNum = row.getFirstCellNum();
+			int lastCellNum = row.getLastCellNum();
+			CellPlan[] cells=new CellPlan[lastCellNum-firstCellNum];
+			for(int x=firstCellNum;x<lastCellNum;x++) {
+				Cell cell = row.getCell(x);
+				if(cell==null) continue;
+				cells[x-firstCellNum]=new CellPlan(x, cell.getCellType(), ExcelOperate.cellText(cell), cell.getCellStyle().getIndex(), getSharedStringIndex(cell));
+			}
+			rows[y]=new RowPlan(row.getHeight(), row.getHeightInPoints(), firstCellNum, cells);
+			maxColumn=Math.max(maxColumn, lastCellNum-1);
+		}
+		for(int[] region:mergedRegions) {
+			maxColumn=Math.max(maxColumn, region[3]);
+		}
+		int[] columnWidths=new int[maxColumn+1];
+		for(int x=0;x<=maxColumn;x++) {
+			columnWidths[x]=sheet.getColumnWidth(x);
+		}
+		String sheetPartName=null;
+		if(sheet instanceof XSSFSheet) {
+			sheetPartName=((XSSFSheet)sheet).getPackagePart().getPartName().getName();
+		}
+		return new TemplatePlan(mergedRegions, rows, columnWidths, sheetPartName);
+	}
+
+	private static int getSharedStringIndex(Cell cell) {
+		if(cell instanceof XSSFCell) {
+			CTCell ctCell = ((XSSFCell)cell).getCTCell();
+			if(ctCell.getT()==STCellType.S && ctCell.isSetV()) {
+				return Integer.parseInt(ctCell.getV());
+			}
+		}
+		return -1;
+	}
+
+	public int getNumMergedRegions() {
+		return mergedRegions.length;
+	}
+
+	/**
+	 * 	获取指定下标的合并单元格范围
+	 */
+	public CellRangeAddress getMergedRegion(int index) {
+		int[] r=mergedRegions[index];
+		return new CellRangeAddress(r[0], r[1], r[2], r[3]);
+	}
+
+	/**
+	 * 	获取指定下标的合并单元格范围 {firstRow,lastRow,firstColumn,lastColumn}，不可修改
+	 */
+	int[] getMergedRegionBounds(int index) {
+		return mergedRegions[index];
+	}
+
+	/**
+	 * 	指定行的最后一列(包括该行所在的合并单元格)，没有单元格时返回-1
+	 */
+	public int getLastColumn(int row) {
+		RowPlan rowPlan = getRow(row);
+		int lastColumn = rowPlan==null?-1:rowPlan.getLastCellNum()-1;
+		if(row>=0 && row<rowMergedRegions.length && rowMergedRegions[row]!=null) {
+			for(int i:rowMergedRegions[row]) {
+				lastColumn=Math.max(lastColumn, mergedRegions[i][3]);
+			}
+		}
+		return lastColumn;
+	}
+
+	/**
+	 *	获取指定行列所在的合并单元格下标，不在合并单元格里时返回-1
+	 * @param row
+	 * @param col
+	 * @return
+	 */
+	public int getMergedRegionIndex(int row,int col) {
+		if(row<0 || row>=rowMergedRegions.length || rowMergedRegions[row]==null) return -1;
+		for(int i:rowMergedRegions[row]) {
+			if(col>=mergedRegions[i][2] && col<=mergedRegions[i][3]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 *	如果指定行有合并单元格，则获取第一个合并单元格的范围[x,y,x1,y1],如果没有合并单元格，则返回[row,row,row,row]
+	 * @param row
+	 * @return
+	 */
+	public int[] getRowContainsMerged(int row) {
+		if(row>=0 && row<rowMergedRegions.length && rowMergedRegions[row]!=null) {
+			int[] m=mergedRegions[rowMergedRegions[row][0]];
+			return new int[] {m[2],m[0],m[3],m[1]};
+		}
+		return new int[] {row,row,row,row};
+	}
+
+	/**
+	 * 	获取指定行，不存在时返回null
+	 */
+	public RowPlan getRow(int row) {
+		if(row<0 || row>=rows.length) return null;
+		return rows[row];
+	}
+
+	public int getLastRowNum() {
+		return rows.length-1;
+	}
+
+	/**
+	 * 	获取列宽(同 Sheet.getColumnWidth)，超出模板范围时返回0
+	 */
+	public int getColumnWidth(int col) {
+		if(col<0 || col>=columnWidths.length) return 0;
+		return columnWidths[col];
+	}
+
+	public String getSheetPartName() {
+		return sheetPartName;
+	}
+
+	/**
+	 * 	写入二进制快照
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(mergedRegions.length);
+		for(int[] r:mergedRegions) {
+			for(int i=0;i<4;i++) {
+				out.writeInt(r[i]);
+			}
+		}
+		out.writeInt(columnWidths.length);
+		for(int w:columnWidths) {
+			out.writeInt(w);
+		}
+		writeString(out, sheetPartName);
+		out.writeInt(rows.length);
+		for(RowPlan row:rows) {
+			if(row==null) {
+				out.writeBoolean(false);
+				continue;
+			}
+			out.writeBoolean(true);
+			out.writeShort(row.height);
+			out.writeFloat(row.heightInPoints);
+			out.writeInt(row.firstCellNum);
+			out.writeInt(row.cells.length);
+			for(CellPlan cell:row.cells) {
+				if(cell==null) {
+					out.writeBoolean(false);
+					continue;
+				}
+				out.writeBoolean(true);
+				out.writeInt(cell.cellType);
+				writeString(out, cell.value);
+				out.writeShort(cell.styleIndex);
+				out.writeInt(cell.sharedStringIndex);
+			}
+		}
+	}
+
+	/**
+	 * 	读取二进制快照
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static TemplatePlan readFrom(DataInputStream in) throws IOException {
+		if(in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+			throw new IOException("不支持的模板快照格式");
+		}
+		int[][] mergedRegions=new int[in.readInt()][];
+		for(int i=0;i<mergedRegions.length;i++) {
+			mergedRegions[i]=new int[] {in.readInt(),in.readInt(),in.readInt(),in.readInt()};
+		}
+		int[] columnWidths=new int[in.readInt()];
+		for(int i=0;i<columnWidths.length;i++) {
+			columnWidths[i]=in.readInt();
+		}
+		String sheetPartName = readString(in);
+		RowPlan[] rows=new RowPlan[in.readInt()];
+		for(int y=0;y<rows.length;y++) {
+			if(!in.readBoolean()) continue;
+			short height = in.readShort();
+			float heightInPoints = in.readFloat();
+			int firstCellNum = in.readInt();
+			CellPlan[] cells=new CellPlan[in.readInt()];
+			for(int i=0;i<cells.length;i++) {
+				if(!in.readBoolean()) continue;
+				int cellType = in.readInt();
+				String value = readString(in);
+				short styleIndex = in.readShort();
+				cells[i]=new CellPlan(firstCellNum+i, cellType, value, styleIndex, in.readInt());
+			}
+			rows[y]=new RowPlan(height, heightInPoints, firstCellNum, cells);
+		}
+		return new TemplatePlan(mergedRegions, rows, columnWidths, sheetPartName);
+	}
+
+	static void writeString(DataOutputStream out,String value) throws IOException {
+		if(value==null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length<0) return null;
+		byte[] bytes=new byte[length];
+		in.readFully(bytes);
+		return new String(bytes,"UTF-8");
+	}
+}
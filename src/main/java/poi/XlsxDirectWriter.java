@@ -0,0 +1,294 @@
+package poi;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * XLSX快速输出：模板包里除第一个工作表以外的部分(主题、样式、共享字符串、图片、打印设置等)原样复制，
+ * 只流式生成工作表的 sheetData 和 mergeCells，不经过POI的对象模型
+ * 样式和模板文本沿用模板的样式表和共享字符串表，数据里的字符串写为内联字符串，因此无需修改这两个部分
+ * @author xhc
+ *
+ */
+public class XlsxDirectWriter {
+
+	private static final Pattern SHEET_DATA=Pattern.compile("<((?:\\w+:)?)sheetData\\b[^>]*?(?:/>|>.*?</\\1sheetData>)",Pattern.DOTALL);
+
+	private static final Pattern DIMENSION=Pattern.compile("<(?:\\w+:)?dimension\\b[^>]*/>");
+
+	private static final Pattern MERGE_CELLS=Pattern.compile("<((?:\\w+:)?)mergeCells\\b[^>]*?(?:/>|>.*?</\\1mergeCells>)",Pattern.DOTALL);
+
+	/**
+	 * 按工作表的元素顺序，位于 mergeCells 之后的元素
+	 */
+	private static final Pattern AFTER_MERGE_CELLS=Pattern.compile("<(?:\\w+:)?(?:phoneticPr|conditionalFormatting|dataValidations|hyperlinks|printOptions|pageMargins|pageSetup|headerFooter|rowBreaks|colBreaks|customProperties|cellWatches|ignoredErrors|smartTags|drawing|legacyDrawing|legacyDrawingHF|picture|oleObjects|controls|webPublishItems|tableParts|extLst)\\b");
+
+	private static final Pattern WORKSHEET_END=Pattern.compile("</(?:\\w+:)?worksheet>");
+
+	private static final String CALC_CHAIN="xl/calcChain.xml";
+
+	private static final String CONTENT_TYPES="[Content_Types].xml";
+
+	private static final String WORKBOOK_RELS="xl/_rels/workbook.xml.rels";
+
+	private final ZipSegmentWriter zip;
+
+	private final Writer writer;
+
+	private final SheetParts sheetParts;
+
+	private final SheetXmlRenderer renderer;
+
+	private boolean finished;
+
+	private RenderMonitor renderMonitor;
+
+	/**
+	 * 	模板工作表XML拆分后的各部分
+	 */
+	static class SheetParts{
+		/**
+		 * 元素的命名空间前缀
+		 */
+		final String ns;
+		/**
+		 * sheetData 之前的部分(已去掉 dimension)
+		 */
+		final String head;
+		/**
+		 * sheetData 之后、mergeCells 之前的部分
+		 */
+		final String middle;
+		/**
+		 * mergeCells 之后的部分
+		 */
+		final String tail;
+
+		SheetParts(String sheetXml) {
+			Matcher sheetData = SHEET_DATA.matcher(sheetXml);
+			if(!sheetData.find()) {
+				throw new IllegalArgumentException("模板工作表里没有sheetData");
+			}
+			this.ns=sheetData.group(1);
+			this.head=DIMENSION.matcher(sheetXml.substring(0, sheetData.start())).replaceFirst("");
+			String rest = sheetXml.substring(sheetData.end());
+			Matcher mergeCells = MERGE_CELLS.matcher(rest);
+			if(mergeCells.find()) {
+				this.middle=rest.substring(0, mergeCells.start());
+				this.tail=rest.substring(mergeCells.end());
+			}else {
+				Matcher after = AFTER_MERGE_CELLS.matcher(rest);
+				Matcher end = WORKSHEET_END.matcher(rest);
+				int index = after.find()?after.start():(end.find()?end.start():rest.length());
+				this.middle=rest.substring(0, index);
+				this.tail=rest.substring(index);
+			}
+		}
+
+		/**
+		 * 	输出 sheetData 开始之前的部分
+		 */
+		void writeStart(Writer out) throws IOException {
+			out.write(head);
+			out.write('<');
+			out.write(ns);
+			out.write("sheetData>");
+		}
+
+		/**
+		 * 	输出 sheetData 结束之后的部分，包括合并单元格
+		 */
+		void writeEnd(Writer out,List<CellRangeAddress> mergedRegions) throws IOException {
+			out.write("</");
+			out.write(ns);
+			out.write("sheetData>");
+			out.write(middle);
+			SheetXmlRenderer.writeMergeCells(out, ns, mergedRegions);
+			out.write(tail);
+		}
+	}
+
+	/**
+	 * 	创建后依次 appendRow，最后调用 finish；不会关闭os
+	 * @param template XLSX模板
+	 * @param os
+	 * @throws IOException
+	 */
+	public XlsxDirectWriter(ExcelTemplate template,OutputStream os) throws IOException {
+		if(template.getSuffix()!=ExcelSuffix.XLSX) {
+			throw new IllegalArgumentException("只支持XLSX模板:"+template.getPath());
+		}
+		TemplatePlan plan = template.getPlan();
+		String sheetEntry = plan.getSheetPartName().substring(1);
+		this.zip=new ZipSegmentWriter(os);
+		this.sheetParts=new SheetParts(copyPackage(template.getContent(), sheetEntry, zip));
+		zip.putNextEntry(sheetEntry);
+		this.writer=new BufferedWriter(new OutputStreamWriter(zip, "UTF-8"), 65536);
+		sheetParts.writeStart(writer);
+		this.renderer=new SheetXmlRenderer(plan, sheetParts.ns, writer, 0);
+	}
+
+	/**
+	 * 	设置后每追加一个模板行块检查是否被取消或超时，被取消时抛出 RenderCancelledException，之后不能再输出
+	 * @param renderMonitor
+	 */
+	public void setRenderMonitor(RenderMonitor renderMonitor) {
+		this.renderMonitor=renderMonitor;
+	}
+
+	/**
+	 * 	复制模板包里除工作表以外的全部部分，去掉计算链(calcChain，公式位置已变化)，返回工作表的XML
+	 */
+	static String copyPackage(byte[] content,String sheetEntry,ZipSegmentWriter zip) throws IOException {
+		ZipInputStream zis=new ZipInputStream(new ByteArrayInputStream(content));
+		byte[] buffer=new byte[8192];
+		String sheetXml=null;
+		String contentTypes=null;
+		String workbookRels=null;
+		boolean hasCalcChain=false;
+		try {
+			ZipEntry entry;
+			while((entry=zis.getNextEntry())!=null) {
+				String name = entry.getName();
+				if(name.equals(sheetEntry)) {
+					sheetXml=readString(zis, buffer);
+				}else if(name.equals(CONTENT_TYPES)) {
+					contentTypes=readString(zis, buffer);
+				}else if(name.equals(WORKBOOK_RELS)) {
+					workbookRels=readString(zis, buffer);
+				}else if(name.equals(CALC_CHAIN)) {
+					hasCalcChain=true;
+				}else {
+					zip.putNextEntry(name);
+					int read;
+					while((read=zis.read(buffer))!=-1) {
+						zip.write(buffer, 0, read);
+					}
+					zip.closeEntry();
+				}
+			}
+		}finally {
+			zis.close();
+		}
+		if(sheetXml==null) {
+			throw new IOException("模板包里没有工作表:"+sheetEntry);
+		}
+		if(hasCalcChain) {
+			contentTypes=contentTypes.replaceAll("<Override[^>]*PartName=\"/xl/calcChain.xml\"[^>]*/>", "");
+			workbookRels=workbookRels.replaceAll("<Relationship[^>]*Target=\"(/xl/)?calcChain.xml\"[^>]*/>", "");
+		}
+		writeEntry(zip, CONTENT_TYPES, contentTypes);
+		writeEntry(zip, WORKBOOK_RELS, workbookRels);
+		return sheetXml;
+	}
+
+	private static String readString(InputStream is,byte[] buffer) throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		int read;
+		while((read=is.read(buffer))!=-1) {
+			bos.write(buffer, 0, read);
+		}
+		return bos.toString("UTF-8");
+	}
+
+	private static void writeEntry(ZipSegmentWriter zip,String name,String text) throws IOException {
+		if(text==null) return;
+		zip.putEntry(name, text.getBytes("UTF-8"));
+	}
+
+	/**
+	 * 	追加复制模板行(同 ExcelOperate.appendCopyRow)
+	 * @param originRow
+	 * @throws IOException
+	 */
+	public void appendRow(int originRow) throws IOException {
+		appendRow(originRow,null);
+	}
+
+	/**
+	 * 	追加复制模板行(同 ExcelOperate.appendCopyRow)，该行包含合并单元格时复制合并单元格所占的全部行
+	 * @param originRow
+	 * @param data
+	 * @throws IOException
+	 */
+	public void appendRow(int originRow,Map<String,Object> data) throws IOException {
+		checkNotFinished();
+		if(renderMonitor==null) {
+			renderer.appendRow(originRow, data);
+			return;
+		}
+		checkRender(0);
+		int firstRow = renderer.getNextRow();
+		renderer.appendRow(originRow, data);
+		checkRender(renderer.getNextRow()-firstRow);
+	}
+
+	/**
+	 * 	检查是否被取消或超时，被取消时结束输出
+	 */
+	private void checkRender(int rows) {
+		try {
+			if(rows>0) {
+				renderMonitor.rowsWritten(rows);
+			}else {
+				renderMonitor.check();
+			}
+		} catch (RenderCancelledException e) {
+			finished=true;
+			throw e;
+		}
+	}
+
+	/**
+	 * 	下一次追加的起始行(从0开始)
+	 */
+	public int getNextAppendRow() {
+		return renderer.getNextRow();
+	}
+
+	/**
+	 * 	添加合并单元格，finish时输出，不检查重叠
+	 * @param cellRangeAddress
+	 */
+	public void addMergedRegion(CellRangeAddress cellRangeAddress) {
+		checkNotFinished();
+		renderer.addMergedRegion(cellRangeAddress);
+	}
+
+	/**
+	 * 	结束工作表并写完整个XLSX包，不关闭输出流
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		checkNotFinished();
+		if(renderMonitor!=null) checkRender(0);
+		finished=true;
+		sheetParts.writeEnd(writer, renderer.getMergedRegions());
+		writer.flush();
+		zip.closeEntry();
+		zip.finish();
+		if(renderMonitor!=null) renderMonitor.finish();
+	}
+
+	private void checkNotFinished() {
+		if(finished) {
+			throw new IllegalStateException("已经finish");
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package poi;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ZIP输出(只支持DEFLATED条目，不支持ZIP64)：
+ * 普通条目同 ZipOutputStream 边写边压缩；分段条目由多个线程各自预先压缩为 Segment，这里只按顺序复制压缩后的字节，
+ * CRC 由各段的 CRC 合并得到，因此拼接时不需要再解压或压缩
+ * @author xhc
+ *
+ */
+class ZipSegmentWriter extends OutputStream {
+
+	private static final long LIMIT=0xFFFFFFFFL;
+
+	/**
+	 * 最后一个空的压缩块(BFINAL=1，固定哈夫曼编码，只有结束符)
+	 */
+	private static final byte[] FINAL_BLOCK={0x03,0x00};
+
+	private static final int FLAG_DATA_DESCRIPTOR=0x08;
+
+	private static final int FLAG_UTF8=0x800;
+
+	private final OutputStream out;
+
+	private final int dosTime;
+
+	private final Deflater deflater=new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+	private final CRC32 crc=new CRC32();
+
+	private final byte[] buffer=new byte[65536];
+
+	private final List<Entry> entries=new ArrayList<Entry>();
+
+	private final Set<String> names=new HashSet<String>();
+
+	private long written;
+
+	/**
+	 * 当前的条目，没有时为null
+	 */
+	private Entry entry;
+
+	/**
+	 * 当前条目是分段条目
+	 */
+	private boolean segmented;
+
+	private boolean finished;
+
+	/**
+	 * 	一段预先压缩的条目数据：raw deflate，以 SYNC_FLUSH 结束(字节对齐、非最后一块)，多段可以直接拼接
+	 * 	写入的是未压缩的数据，压缩后的字节写到构造时的输出流，close 时关闭该输出流
+	 * 	需要Java 7及以上的运行环境(Deflater.SYNC_FLUSH)
+	 * @author xhc
+	 *
+	 */
+	static class Segment extends OutputStream {
+		private final OutputStream out;
+		private final Deflater deflater;
+		private final CRC32 crc=new CRC32();
+		private final byte[] buffer=new byte[65536];
+		private long size;
+		private long compressedSize;
+		private boolean closed;
+
+		Segment(OutputStream out) {
+			this.out=out;
+			this.deflater=new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(closed) throw new IOException("Segment已关闭");
+			if(len==0) return;
+			crc.update(b, off, len);
+			size+=len;
+			deflater.setInput(b, off, len);
+			while(!deflater.needsInput()) {
+				writeCompressed(deflater.deflate(buffer, 0, buffer.length));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			closed=true;
+			try {
+				int length;
+				do {
+					length=deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					writeCompressed(length);
+				}while(length==buffer.length);
+			}finally {
+				deflater.end();
+				out.close();
+			}
+		}
+
+		private void writeCompressed(int length) throws IOException {
+			if(length==0) return;
+			out.write(buffer, 0, length);
+			compressedSize+=length;
+		}
+
+		/**
+		 * 	未压缩的字节数
+		 */
+		long getSize() {
+			return size;
+		}
+
+		/**
+		 * 	压缩后的字节数
+		 */
+		long getCompressedSize() {
+			return compressedSize;
+		}
+
+		long getCrc() {
+			return crc.getValue();
+		}
+	}
+
+	/**
+	 * 	已写入的条目，finish时写入中央目录
+	 */
+	private static class Entry{
+		private final byte[] name;
+		private final long offset;
+		private final int flag;
+		private long crc;
+		private long size;
+		private long compressedSize;
+
+		Entry(byte[] name,long offset,int flag) {
+			this.name=name;
+			this.offset=offset;
+			this.flag=flag;
+		}
+	}
+
+	/**
+	 * @param os 不会被关闭
+	 */
+	ZipSegmentWriter(OutputStream os) {
+		this.out=new BufferedOutputStream(os, 65536);
+		this.dosTime=dosTime(Calendar.getInstance());
+	}
+
+	/**
+	 * 	开始一个普通条目，之后 write 的数据边写边压缩，CRC和大小写在数据之后
+	 */
+	void putNextEntry(String name) throws IOException {
+		startEntry(name, FLAG_DATA_DESCRIPTOR);
+		segmented=false;
+		writeLocalHeader(entry);
+	}
+
+	/**
+	 * 	写入一个完整的普通条目
+	 */
+	void putEntry(String name,byte[] data) throws IOException {
+		putNextEntry(name);
+		write(data, 0, data.length);
+		closeEntry();
+	}
+
+	/**
+	 * 	开始一个分段条目，之后按 segments 的顺序用 writeRaw 复制各段压缩后的字节，最后 closeEntry
+	 * @param segments 已关闭
+	 */
+	void putSegmentedEntry(String name,List<Segment> segments) throws IOException {
+		long crcValue=0;
+		long size=0;
+		long compressedSize=FINAL_BLOCK.length;
+		for(Segment segment:segments) {
+			if(!segment.closed) throw new IllegalStateException("Segment未关闭");
+			crcValue=crc32Combine(crcValue, segment.getCrc(), segment.getSize());
+			size+=segment.getSize();
+			compressedSize+=segment.getCompressedSize();
+		}
+		startEntry(name, 0);
+		segmented=true;
+		entry.crc=crcValue;
+		entry.size=size;
+		entry.compressedSize=compressedSize;
+		checkLimit(size);
+		checkLimit(compressedSize);
+		writeLocalHeader(entry);
+	}
+
+	/**
+	 * 	复制分段条目压缩后的字节
+	 */
+	void writeRaw(byte[] b,int off,int len) throws IOException {
+		if(entry==null || !segmented) throw new IllegalStateException("不是分段条目");
+		writeOut(b, off, len);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(entry==null || segmented) throw new IllegalStateException("不是普通条目");
+		if(len==0) return;
+		crc.update(b, off, len);
+		entry.size+=len;
+		deflater.setInput(b, off, len);
+		while(!deflater.needsInput()) {
+			deflate();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * 	结束当前条目：普通条目写入压缩的剩余部分和数据描述符，分段条目写入最后一块并检查复制的字节数
+	 */
+	void closeEntry() throws IOException {
+		if(entry==null) throw new IllegalStateException("没有打开的条目");
+		if(segmented) {
+			writeOut(FINAL_BLOCK, 0, FINAL_BLOCK.length);
+			long copied = written-entry.offset-30-entry.name.length;
+			if(copied!=entry.compressedSize) {
+				throw new IOException("分段条目复制的字节数("+copied+")与压缩后的大小("+entry.compressedSize+")不同");
+			}
+		}else {
+			deflater.finish();
+			while(!deflater.finished()) {
+				deflate();
+			}
+			entry.crc=crc.getValue();
+			entry.compressedSize=deflater.getBytesWritten();
+			deflater.reset();
+			crc.reset();
+			checkLimit(entry.size);
+			checkLimit(entry.compressedSize);
+			writeInt(0x08074b50L);
+			writeInt(entry.crc);
+			writeInt(entry.compressedSize);
+			writeInt(entry.size);
+		}
+		entry=null;
+	}
+
+	/**
+	 * 	写入中央目录，不关闭输出流
+	 */
+	void finish() throws IOException {
+		if(finished) return;
+		if(entry!=null) closeEntry();
+		finished=true;
+		try {
+			long offset=written;
+			for(Entry e:entries) {
+				writeInt(0x02014b50L);
+				writeShort(20);
+				writeShort(20);
+				writeShort(e.flag);
+				writeShort(Deflater.DEFLATED);
+				writeInt(dosTime&0xFFFFFFFFL);
+				writeInt(e.crc);
+				writeInt(e.compressedSize);
+				writeInt(e.size);
+				writeShort(e.name.length);
+				writeShort(0);
+				writeShort(0);
+				writeShort(0);
+				writeShort(0);
+				writeInt(0);
+				writeInt(e.offset);
+				writeOut(e.name, 0, e.name.length);
+			}
+			long size=written-offset;
+			checkLimit(written);
+			writeInt(0x06054b50L);
+			writeShort(0);
+			writeShort(0);
+			writeShort(entries.size());
+			writeShort(entries.size());
+			writeInt(size);
+			writeInt(offset);
+			writeShort(0);
+			out.flush();
+		}finally {
+			deflater.end();
+		}
+	}
+
+	private void startEntry(String name,int flag) throws IOException {
+		if(finished) throw new IllegalStateException("已经finish");
+		if(entry!=null) closeEntry();
+		if(!names.add(name)) throw new IllegalArgumentException("重复的条目:"+name);
+		if(entries.size()>=0xFFFF) throw new IOException("超出ZIP的最大条目数");
+		checkLimit(written);
+		entry=new Entry(name.getBytes("UTF-8"), written, flag|FLAG_UTF8);
+		entries.add(entry);
+	}
+
+	private void writeLocalHeader(Entry e) throws IOException {
+		boolean descriptor=(e.flag&FLAG_DATA_DESCRIPTOR)!=0;
+		writeInt(0x04034b50L);
+		writeShort(20);
+		writeShort(e.flag);
+		writeShort(Deflater.DEFLATED);
+		writeInt(dosTime&0xFFFFFFFFL);
+		writeInt(descriptor?0:e.crc);
+		writeInt(descriptor?0:e.compressedSize);
+		writeInt(descriptor?0:e.size);
+		writeShort(e.name.length);
+		writeShort(0);
+		writeOut(e.name, 0, e.name.length);
+	}
+
+	private void deflate() throws IOException {
+		int length = deflater.deflate(buffer, 0, buffer.length);
+		if(length>0) writeOut(buffer, 0, length);
+	}
+
+	private void writeShort(int v) throws IOException {
+		out.write(v&0xFF);
+		out.write((v>>>8)&0xFF);
+		written+=2;
+	}
+
+	private void writeInt(long v) throws IOException {
+		out.write((int)(v&0xFF));
+		out.write((int)((v>>>8)&0xFF));
+		out.write((int)((v>>>16)&0xFF));
+		out.write((int)((v>>>24)&0xFF));
+		written+=4;
+	}
+
+	private void writeOut(byte[] b,int off,int len) throws IOException {
+		out.write(b, off, len);
+		written+=len;
+	}
+
+	private static void checkLimit(long value) throws IOException {
+		if(value>LIMIT) throw new IOException("超出ZIP的大小限制(不支持ZIP64)");
+	}
+
+	/**
+	 * 	MS-DOS格式的日期时间：高16位为日期，低16位为时间
+	 */
+	private static int dosTime(Calendar calendar) {
+		int year = calendar.get(Calendar.YEAR);
+		if(year<1980) return (1<<21)|(1<<16);
+		return ((year-1980)<<25)|((calendar.get(Calendar.MONTH)+1)<<21)|(calendar.get(Calendar.DAY_OF_MONTH)<<16)
+				|(calendar.get(Calendar.HOUR_OF_DAY)<<11)|(calendar.get(Calendar.MINUTE)<<5)|(calendar.get(Calendar.SECOND)>>1);
+	}
+
+	/**
+	 * 	由前后两段数据各自的CRC得到拼接后的CRC(同 zlib 的 crc32_combine)
+	 * @param crc1 前一段的CRC
+	 * @param crc2 后一段的CRC
+	 * @param length2 后一段的字节数
+	 */
+	static long crc32Combine(long crc1,long crc2,long length2) {
+		if(length2<=0) return crc1;
+		long[] even=new long[32];
+		long[] odd=new long[32];
+		//一个0比特对应的运算矩阵
+		odd[0]=0xEDB88320L;
+		long row=1;
+		for(int n=1;n<32;n++) {
+			odd[n]=row;
+			row<<=1;
+		}
+		//两个0比特、四个0比特
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+		//按length2的每一位，对crc1依次作用一个字节、两个字节、四个字节...的0
+		do {
+			gf2MatrixSquare(even, odd);
+			if((length2&1)!=0) crc1=gf2MatrixTimes(even, crc1);
+			length2>>>=1;
+			if(length2==0) break;
+			gf2MatrixSquare(odd, even);
+			if((length2&1)!=0) crc1=gf2MatrixTimes(odd, crc1);
+			length2>>>=1;
+		}while(length2!=0);
+		return crc1^crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] matrix,long vector) {
+		long sum=0;
+		for(int i=0;vector!=0;i++,vector>>>=1) {
+			if((vector&1)!=0) sum^=matrix[i];
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square,long[] matrix) {
+		for(int n=0;n<32;n++) {
+			square[n]=gf2MatrixTimes(matrix, matrix[n]);
+		}
+	}
+}
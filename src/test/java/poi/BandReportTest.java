@@ -0,0 +1,90 @@
+package poi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import poi.BandReport.AggregateType;
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * BandReport 的测试
+ * @author xhc
+ *
+ */
+public class BandReportTest extends TestCase {
+
+	private File templateFile;
+
+	/**
+	 * 	模板：第0行明细，第1行小计(合并单元格，文本里包含key)，第2行总计
+	 */
+	protected void setUp() throws Exception {
+		XSSFWorkbook workbook=new XSSFWorkbook();
+		Sheet sheet = workbook.createSheet();
+		Row detail = sheet.createRow(0);
+		detail.createCell(0).setCellValue("#region#");
+		detail.createCell(1).setCellValue("#amount#");
+		Row footer = sheet.createRow(1);
+		footer.createCell(0).setCellValue("Avg: #avg# Max: #max#");
+		footer.createCell(1);
+		sheet.addMergedRegion(new CellRangeAddress(1, 1, 0, 1));
+		Row summary = sheet.createRow(2);
+		summary.createCell(0).setCellValue("Min: #min#");
+		summary.createCell(1);
+		sheet.addMergedRegion(new CellRangeAddress(2, 2, 0, 1));
+		templateFile=File.createTempFile("band", ".xlsx");
+		FileOutputStream os=new FileOutputStream(templateFile);
+		try {
+			workbook.write(os);
+		}finally {
+			os.close();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		templateFile.delete();
+	}
+
+	private static Map<String,Object> record(String region,Object amount) {
+		Map<String,Object> record=new HashMap<String, Object>();
+		record.put("region", region);
+		record.put("amount", amount);
+		return record;
+	}
+
+	public void testGroupWithoutNumericValues() throws Exception {
+		ExcelOperate operate=new ExcelOperate(templateFile.getPath(), new XSSFWorkbook(), ExcelSuffix.XLSX);
+		List<Map<String,Object>> data=new ArrayList<Map<String,Object>>();
+		data.add(record("R1", null));
+		data.add(record("R1", null));
+		data.add(record("R2", 3));
+		data.add(record("R2", 5));
+		int count = new BandReport(operate)
+				.setDetailRow(0)
+				.setGroupFooterRow(1)
+				.setSummaryRows(2)
+				.setGroupFields("region")
+				.addAggregate(AggregateType.AVG, "amount", "avg")
+				.addAggregate(AggregateType.MAX, "amount", "max")
+				.addAggregate(AggregateType.MIN, "amount", "min")
+				.render(data.iterator());
+		assertEquals(4, count);
+
+		Sheet target = operate.getTargetSheet();
+		//全部为null的组没有值，替换为空
+		assertEquals("Avg:  Max: ", target.getRow(2).getCell(0).getStringCellValue());
+		assertEquals("Avg: 4.0 Max: 5.0", target.getRow(5).getCell(0).getStringCellValue());
+		assertEquals("Min: 3.0", target.getRow(6).getCell(0).getStringCellValue());
+	}
+}
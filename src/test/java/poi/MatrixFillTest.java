@@ -0,0 +1,103 @@
+package poi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * MatrixFill 的测试
+ * @author xhc
+ *
+ */
+public class MatrixFillTest extends TestCase {
+
+	private File templateFile;
+
+	/**
+	 * 	模板：第0行表头，第1行 名称、数值、合计
+	 */
+	protected void setUp() throws Exception {
+		XSSFWorkbook workbook=new XSSFWorkbook();
+		Sheet sheet = workbook.createSheet();
+		Row header = sheet.createRow(0);
+		header.createCell(0).setCellValue("名称");
+		header.createCell(1).setCellValue("期间");
+		header.createCell(2).setCellValue("备注");
+		Row row = sheet.createRow(1);
+		row.createCell(0).setCellValue("#name#");
+		row.createCell(1).setCellValue(0);
+		row.createCell(2).setCellValue("-");
+		templateFile=File.createTempFile("matrix", ".xlsx");
+		FileOutputStream os=new FileOutputStream(templateFile);
+		try {
+			workbook.write(os);
+		}finally {
+			os.close();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		templateFile.delete();
+	}
+
+	private ExcelOperate operate() {
+		return new ExcelOperate(templateFile.getPath(), new XSSFWorkbook(), ExcelSuffix.XLSX);
+	}
+
+	public void testFillRows() {
+		ExcelOperate operate = operate();
+		int count = new MatrixFill(operate).setTemplateRow(1).setValueColumn(1)
+				.setHeader(0, "1月", "2月")
+				.setRowLabels("name", "a", null)
+				.fillRows(new double[][]{{1,2},{3,Double.NaN}});
+		assertEquals(2, count);
+		Sheet target = operate.getTargetSheet();
+		assertEquals("2月", target.getRow(0).getCell(2).getStringCellValue());
+		assertEquals("备注", target.getRow(0).getCell(3).getStringCellValue());
+		assertEquals("a", target.getRow(1).getCell(0).getStringCellValue());
+		assertEquals(2, target.getRow(1).getCell(2).getNumericCellValue(), 0);
+		assertEquals("", target.getRow(2).getCell(0).getStringCellValue());
+		assertEquals("-", target.getRow(2).getCell(3).getStringCellValue());
+	}
+
+	public void testEmptyRowsWriteHeader() {
+		ExcelOperate operate = operate();
+		int count = new MatrixFill(operate).setTemplateRow(1).setValueColumn(1)
+				.setHeader(0, "1月", "2月", "3月")
+				.setRowLabels("name")
+				.fillRows(new double[0][]);
+		assertEquals(0, count);
+		Sheet target = operate.getTargetSheet();
+		assertEquals(0, target.getLastRowNum());
+		assertEquals("3月", target.getRow(0).getCell(3).getStringCellValue());
+		assertEquals("备注", target.getRow(0).getCell(4).getStringCellValue());
+
+		//没有表头时不输出
+		operate = operate();
+		assertEquals(0, new MatrixFill(operate).setTemplateRow(1).setValueColumn(1).fillColumns());
+		assertEquals(0, operate.getTargetSheet().getPhysicalNumberOfRows());
+	}
+
+	public void testRowLabelsLengthChecked() {
+		ExcelOperate operate = operate();
+		MatrixFill fill = new MatrixFill(operate).setTemplateRow(1).setValueColumn(1)
+				.setHeader(0, "1月")
+				.setRowLabels("name", "a");
+		try {
+			fill.fillColumns(new double[]{1,2});
+			fail();
+		} catch (IllegalArgumentException e) {
+			// 文本数与行数不同
+		}
+		Sheet target = operate.getTargetSheet();
+		assertEquals(0, target.getPhysicalNumberOfRows());
+		assertEquals(target.getDefaultColumnWidth()*256, target.getColumnWidth(0));
+	}
+}
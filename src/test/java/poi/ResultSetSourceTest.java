@@ -0,0 +1,204 @@
+package poi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * ResultSetSource 使用H2内存数据库的测试
+ * @author xhc
+ *
+ */
+public class ResultSetSourceTest extends TestCase {
+
+	private static final int ROWS=100;
+
+	private static int databaseIndex;
+
+	private Connection connection;
+
+	private Statement statement;
+
+	protected void setUp() throws Exception {
+		Class.forName("org.h2.Driver");
+		connection=DriverManager.getConnection("jdbc:h2:mem:rss"+(databaseIndex++));
+		statement=connection.createStatement();
+		statement.execute("CREATE TABLE SALES(REGION VARCHAR(10),NAME VARCHAR(20),AMOUNT INT)");
+		PreparedStatement insert = connection.prepareStatement("INSERT INTO SALES VALUES(?,?,?)");
+		for(int i=0;i<ROWS;i++) {
+			insert.setString(1, "R"+i/10);
+			insert.setString(2, "n"+i);
+			insert.setInt(3, i);
+			insert.addBatch();
+		}
+		insert.executeBatch();
+		insert.close();
+	}
+
+	protected void tearDown() throws Exception {
+		statement.close();
+		connection.close();
+	}
+
+	private ResultSet query() throws SQLException {
+		return statement.executeQuery("SELECT REGION,NAME,AMOUNT AS AMT FROM SALES ORDER BY AMOUNT");
+	}
+
+	private static Map<String,String> keyMapping() {
+		Map<String,String> keyMapping=new HashMap<String, String>();
+		keyMapping.put("REGION", "region");
+		keyMapping.put("AMT", "amount");
+		return keyMapping;
+	}
+
+	public void testKeyMapping() throws Exception {
+		ResultSetSource source=new ResultSetSource(query(),0,0,keyMapping());
+		int count=0;
+		while(source.hasNext()) {
+			Map<String,Object> row = source.next();
+			assertEquals(3, row.size());
+			assertEquals("R"+count/10, row.get("region"));
+			//没有映射的列使用列名
+			assertEquals("n"+count, row.get("NAME"));
+			assertEquals(Integer.valueOf(count), row.get("amount"));
+			count++;
+		}
+		assertEquals(ROWS, count);
+	}
+
+	public void testFetchSize() throws Exception {
+		CountingResultSet counting=new CountingResultSet(query());
+		new ResultSetSource(counting.proxy(),25,0,null).close();
+		assertEquals(25, counting.fetchSize);
+
+		counting=new CountingResultSet(query());
+		new ResultSetSource(counting.proxy(),0,0,null).close();
+		assertEquals("fetchSize为0时使用驱动默认", -1, counting.fetchSize);
+	}
+
+	public void testPrefetchIsBounded() throws Exception {
+		CountingResultSet counting=new CountingResultSet(query());
+		ResultSetSource source=new ResultSetSource(counting.proxy(),0,5,keyMapping());
+		assertEquals(Integer.valueOf(0), source.next().get("amount"));
+		Thread.sleep(200);
+		//已取出1行，队列5行，后台线程最多再持有1行
+		assertTrue("预读了"+counting.nextCalls+"行", counting.nextCalls<=1+5+1);
+
+		int count=1;
+		while(source.hasNext()) {
+			assertEquals(Integer.valueOf(count), source.next().get("amount"));
+			count++;
+		}
+		assertEquals(ROWS, count);
+	}
+
+	public void testCloseStopsReader() throws Exception {
+		CountingResultSet counting=new CountingResultSet(query());
+		ResultSetSource source=new ResultSetSource(counting.proxy(),0,2,null);
+		source.next();
+		source.close();
+		int nextCalls = counting.nextCalls;
+		assertFalse(source.hasNext());
+		Thread.sleep(100);
+		assertEquals("close之后不再读取", nextCalls, counting.nextCalls);
+	}
+
+	public void testSQLExceptionPropagates() throws Exception {
+		SQLException failure=new SQLException("boom");
+		CountingResultSet counting=new CountingResultSet(query());
+		counting.failAt=10;
+		counting.failure=failure;
+		assertFailure(new ResultSetSource(counting.proxy(),0,3,null), 9, failure);
+
+		counting=new CountingResultSet(query());
+		counting.failAt=10;
+		counting.failure=failure;
+		assertFailure(new ResultSetSource(counting.proxy()), 9, failure);
+	}
+
+	public void testRuntimeExceptionPropagates() throws Exception {
+		RuntimeException failure=new IllegalArgumentException("driver bug");
+		CountingResultSet counting=new CountingResultSet(query());
+		counting.failAt=10;
+		counting.failure=failure;
+		assertFailure(new ResultSetSource(counting.proxy(),0,3,null), 9, failure);
+	}
+
+	/**
+	 * 	在单独的线程里读取，读取方被阻塞时测试失败而不是一直等待
+	 */
+	private static void assertFailure(final ResultSetSource source,int expectedRows,Throwable failure) throws InterruptedException {
+		final int[] count={0};
+		final Throwable[] thrown={null,null};
+		Thread consumer=new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(source.hasNext()) {
+						source.next();
+						count[0]++;
+					}
+				} catch (Throwable e) {
+					thrown[0]=e;
+					//再次调用时抛出同一个异常，而不是阻塞在已空的队列上
+					try {
+						source.hasNext();
+					} catch (Throwable again) {
+						thrown[1]=again;
+					}
+				}
+			}
+		});
+		consumer.setDaemon(true);
+		consumer.start();
+		consumer.join(5000);
+		assertFalse("读取方被阻塞", consumer.isAlive());
+		assertTrue("没有抛出IllegalStateException:"+thrown[0], thrown[0] instanceof IllegalStateException);
+		assertSame(failure, thrown[0].getCause());
+		assertSame(thrown[0], thrown[1]);
+		assertEquals(expectedRows, count[0]);
+	}
+
+	/**
+	 * 	记录 next/setFetchSize 调用，可以在第failAt次next时抛出异常
+	 */
+	private static class CountingResultSet implements InvocationHandler {
+		private final ResultSet resultSet;
+		private volatile int nextCalls;
+		private int fetchSize=-1;
+		private int failAt=-1;
+		private Throwable failure;
+
+		CountingResultSet(ResultSet resultSet) {
+			this.resultSet=resultSet;
+		}
+
+		ResultSet proxy() {
+			return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class}, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if(method.getName().equals("next")) {
+				nextCalls++;
+				if(nextCalls==failAt) throw failure;
+			}else if(method.getName().equals("setFetchSize")) {
+				fetchSize=(Integer)args[0];
+			}
+			try {
+				return method.invoke(resultSet, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package poi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * ShardedXlsxRenderer 的测试，输出结果用POI读回检查
+ * @author xhc
+ *
+ */
+public class ShardedXlsxRendererTest extends TestCase {
+
+	private static final Pattern REF=Pattern.compile(" r=\"([A-Z]*)(\\d+)\"");
+
+	private File templateFile;
+
+	private ExcelTemplate template;
+
+	/**
+	 * 	模板：第0、1行为一个模板行块，A列纵向合并
+	 */
+	protected void setUp() throws Exception {
+		XSSFWorkbook workbook=new XSSFWorkbook();
+		Sheet sheet = workbook.createSheet();
+		Row first = sheet.createRow(0);
+		first.createCell(0).setCellValue("#name#");
+		first.createCell(1).setCellValue("#amount#");
+		Row second = sheet.createRow(1);
+		second.createCell(0);
+		second.createCell(1).setCellValue("备注");
+		sheet.addMergedRegion(new CellRangeAddress(0, 1, 0, 0));
+		templateFile=File.createTempFile("sharded", ".xlsx");
+		FileOutputStream os=new FileOutputStream(templateFile);
+		try {
+			workbook.write(os);
+		}finally {
+			os.close();
+		}
+		template=ExcelTemplate.load(templateFile, ExcelSuffix.XLSX);
+	}
+
+	protected void tearDown() throws Exception {
+		templateFile.delete();
+	}
+
+	public void testCopyRebased() throws IOException {
+		String xml="<x:row r=\"1\" ht=\"15.0\" customHeight=\"1\"><x:c r=\"A1\" s=\"2\" t=\"inlineStr\"><x:is><x:t xml:space=\"preserve\">"
+				+"a r=&quot;9&quot; r= xr=&quot;1&quot;</x:t></x:is></x:c><x:c r=\"AB1\"><x:v>3</x:v></x:c></x:row>"
+				+"<x:row r=\"20\"><x:c r=\"XFD20\"/></x:row><row r=\"1048575\"><c r=\"A1048575\"/></row>";
+		int[] offsets={0,1,999};
+		int[] sizes={1,2,3,4,5,7,11,64,65536};
+		for(int offset:offsets) {
+			String expected=rebase(xml, offset);
+			for(int size:sizes) {
+				StringWriter writer=new StringWriter();
+				ShardedXlsxRenderer.copyRebased(new StringReader(xml), writer, offset, new char[size]);
+				assertEquals("offset="+offset+",buffer="+size, expected, writer.toString());
+			}
+		}
+		//被中断时停止
+		Thread.currentThread().interrupt();
+		try {
+			ShardedXlsxRenderer.copyRebased(new StringReader(xml), new StringWriter(), 1, new char[64]);
+			fail();
+		} catch (IOException e) {
+			assertTrue(Thread.interrupted());
+		}
+	}
+
+	/**
+	 * 	用正则表达式平移，作为期望值(文本里的双引号已转义，不会被平移)
+	 */
+	private static String rebase(String xml,int offset) {
+		Matcher matcher = REF.matcher(xml);
+		StringBuffer buffer=new StringBuffer();
+		while(matcher.find()) {
+			matcher.appendReplacement(buffer, " r=\""+matcher.group(1)+(Integer.parseInt(matcher.group(2))+offset)+"\"");
+		}
+		matcher.appendTail(buffer);
+		return buffer.toString();
+	}
+
+	public void testCollectionShards() throws Exception {
+		List<List<Map<String,Object>>> shards=new ArrayList<List<Map<String,Object>>>();
+		shards.add(records(0, 3));
+		shards.add(records(3, 0));
+		shards.add(records(3, 250));
+		shards.add(records(253, 1));
+		assertRendered(render(shards, 3), 254);
+	}
+
+	public void testIterableShards() throws Exception {
+		List<Iterable<Map<String,Object>>> shards=new ArrayList<Iterable<Map<String,Object>>>();
+		shards.add(iterable(records(0, 3)));
+		shards.add(iterable(records(3, 0)));
+		shards.add(iterable(records(3, 250)));
+		shards.add(iterable(records(253, 1)));
+		assertRendered(render(shards, 2), 254);
+	}
+
+	public void testCustomShards() throws Exception {
+		List<ShardedXlsxRenderer.Shard> shards=new ArrayList<ShardedXlsxRenderer.Shard>();
+		for(int i=0;i<3;i++) {
+			final List<Map<String,Object>> records=records(i*10, 10);
+			shards.add(new ShardedXlsxRenderer.Shard() {
+				public void render(ShardedXlsxRenderer.ShardWriter writer) throws IOException {
+					int firstRow = writer.getNextAppendRow();
+					for(Map<String,Object> record:records) {
+						writer.appendRow(0, record);
+					}
+					//分片内的行号，拼接时平移
+					writer.addMergedRegion(new CellRangeAddress(firstRow, writer.getNextAppendRow()-1, 2, 2));
+				}
+			});
+		}
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		new ShardedXlsxRenderer(template, 2).render(shards, bos);
+		Sheet sheet = assertRendered(bos.toByteArray(), 30);
+		for(int i=0;i<3;i++) {
+			assertMerged(sheet, new CellRangeAddress(i*20, i*20+19, 2, 2));
+		}
+	}
+
+	public void testNonFiniteNumbers() throws Exception {
+		List<List<Map<String,Object>>> shards=new ArrayList<List<Map<String,Object>>>();
+		List<Map<String,Object>> records=records(0, 1);
+		records.get(0).put("amount", Double.NaN);
+		shards.add(records);
+		Sheet sheet = new XSSFWorkbook(new ByteArrayInputStream(render(shards, 1))).getSheetAt(0);
+		assertEquals(org.apache.poi.ss.usermodel.Cell.CELL_TYPE_ERROR, sheet.getRow(0).getCell(1).getCellType());
+	}
+
+	private byte[] render(List<? extends Iterable<Map<String,Object>>> shards,int threads) throws IOException {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		new ShardedXlsxRenderer(template, threads).render(0, shards, bos);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * 	每条数据两行，A列纵向合并
+	 */
+	private static Sheet assertRendered(byte[] content,int count) throws IOException {
+		Sheet sheet = new XSSFWorkbook(new ByteArrayInputStream(content)).getSheetAt(0);
+		assertEquals(count*2-1, sheet.getLastRowNum());
+		for(int i=0;i<count;i++) {
+			Row first = sheet.getRow(i*2);
+			assertEquals("n"+i, first.getCell(0).getStringCellValue());
+			assertEquals(i, first.getCell(1).getNumericCellValue(), 0);
+			assertEquals("备注", sheet.getRow(i*2+1).getCell(1).getStringCellValue());
+			assertMerged(sheet, new CellRangeAddress(i*2, i*2+1, 0, 0));
+		}
+		return sheet;
+	}
+
+	private static void assertMerged(Sheet sheet,CellRangeAddress expected) {
+		for(int i=0;i<sheet.getNumMergedRegions();i++) {
+			if(sheet.getMergedRegion(i).formatAsString().equals(expected.formatAsString())) return;
+		}
+		fail("没有合并单元格:"+expected.formatAsString());
+	}
+
+	private static List<Map<String,Object>> records(int first,int count) {
+		List<Map<String,Object>> records=new ArrayList<Map<String,Object>>();
+		for(int i=first;i<first+count;i++) {
+			Map<String,Object> record=new HashMap<String, Object>();
+			record.put("name", "n"+i);
+			record.put("amount", i);
+			records.add(record);
+		}
+		return records;
+	}
+
+	/**
+	 * 	不是 Collection 的 Iterable，事先不知道条数
+	 */
+	private static Iterable<Map<String,Object>> iterable(final List<Map<String,Object>> records) {
+		return new Iterable<Map<String,Object>>() {
+			public Iterator<Map<String,Object>> iterator() {
+				return records.iterator();
+			}
+		};
+	}
+}
@@ -0,0 +1,127 @@
+package poi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import poi.ExcelOperate.ExcelSuffix;
+
+/**
+ * XlsxDirectWriter 的测试，输出结果用POI读回检查
+ * @author xhc
+ *
+ */
+public class XlsxDirectWriterTest extends TestCase {
+
+	private File templateFile;
+
+	protected void setUp() throws Exception {
+		XSSFWorkbook workbook=new XSSFWorkbook();
+		Row row = workbook.createSheet().createRow(0);
+		row.createCell(0).setCellValue("#name#");
+		row.createCell(1).setCellValue("#amount#");
+		templateFile=File.createTempFile("direct", ".xlsx");
+		FileOutputStream os=new FileOutputStream(templateFile);
+		try {
+			workbook.write(os);
+		}finally {
+			os.close();
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		templateFile.delete();
+	}
+
+	private static Map<String,Object> record(String name,Object amount) {
+		Map<String,Object> record=new HashMap<String, Object>();
+		record.put("name", name);
+		record.put("amount", amount);
+		return record;
+	}
+
+	public void testNonFiniteNumbers() throws Exception {
+		ExcelTemplate template = ExcelTemplate.load(templateFile, ExcelSuffix.XLSX);
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		XlsxDirectWriter writer=new XlsxDirectWriter(template, bos);
+		writer.appendRow(0, record("a", 1.5));
+		writer.appendRow(0, record("b", Double.NaN));
+		writer.appendRow(0, record("c", Double.POSITIVE_INFINITY));
+		writer.appendRow(0, record("d", Float.NEGATIVE_INFINITY));
+		writer.finish();
+
+		Sheet sheet = new XSSFWorkbook(new ByteArrayInputStream(bos.toByteArray())).getSheetAt(0);
+		assertEquals(1.5, sheet.getRow(0).getCell(1).getNumericCellValue(), 0);
+		//同 POI 的 setCellValue(double)
+		assertError(FormulaError.NUM, sheet.getRow(1).getCell(1));
+		assertError(FormulaError.DIV0, sheet.getRow(2).getCell(1));
+		assertError(FormulaError.DIV0, sheet.getRow(3).getCell(1));
+	}
+
+	public void testSheetPartsWithMergeCells() throws Exception {
+		String xml="<?xml version=\"1.0\"?><x:worksheet xmlns:x=\"main\"><x:dimension ref=\"A1:B3\"/><x:sheetViews/>"
+				+"<x:sheetData><x:row r=\"1\"><x:c r=\"A1\"/></x:row></x:sheetData><x:sheetProtection/>"
+				+"<x:mergeCells count=\"1\"><x:mergeCell ref=\"A1:B1\"/></x:mergeCells><x:pageMargins/></x:worksheet>";
+		XlsxDirectWriter.SheetParts parts=new XlsxDirectWriter.SheetParts(xml);
+		assertEquals("x:", parts.ns);
+		assertEquals("<?xml version=\"1.0\"?><x:worksheet xmlns:x=\"main\"><x:sheetViews/>", parts.head);
+		assertEquals("<x:sheetProtection/>", parts.middle);
+		assertEquals("<x:pageMargins/></x:worksheet>", parts.tail);
+		assertEquals("<?xml version=\"1.0\"?><x:worksheet xmlns:x=\"main\"><x:sheetViews/><x:sheetData></x:sheetData><x:sheetProtection/>"
+				+"<x:mergeCells count=\"1\"><x:mergeCell ref=\"A2:A3\"/></x:mergeCells><x:pageMargins/></x:worksheet>",
+				write(parts, new CellRangeAddress(1, 2, 0, 0)));
+	}
+
+	public void testSheetPartsWithoutMergeCells() throws Exception {
+		//空的sheetData，mergeCells 应在 phoneticPr 之前
+		String xml="<worksheet xmlns=\"main\"><dimension ref=\"A1\"/><sheetData/><sheetCalcPr/><phoneticPr/><pageMargins/></worksheet>";
+		XlsxDirectWriter.SheetParts parts=new XlsxDirectWriter.SheetParts(xml);
+		assertEquals("", parts.ns);
+		assertEquals("<worksheet xmlns=\"main\">", parts.head);
+		assertEquals("<sheetCalcPr/>", parts.middle);
+		assertEquals("<phoneticPr/><pageMargins/></worksheet>", parts.tail);
+		assertEquals("<worksheet xmlns=\"main\"><sheetData></sheetData><sheetCalcPr/><phoneticPr/><pageMargins/></worksheet>", write(parts));
+
+		//sheetData之后没有其它元素
+		parts=new XlsxDirectWriter.SheetParts("<worksheet><sheetData><row r=\"1\"/></sheetData></worksheet>");
+		assertEquals("", parts.middle);
+		assertEquals("</worksheet>", parts.tail);
+		assertEquals("<worksheet><sheetData></sheetData><mergeCells count=\"1\"><mergeCell ref=\"C1:D1\"/></mergeCells></worksheet>",
+				write(parts, new CellRangeAddress(0, 0, 2, 3)));
+	}
+
+	public void testSheetPartsWithoutSheetData() {
+		try {
+			new XlsxDirectWriter.SheetParts("<worksheet><sheetDataX/></worksheet>");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// 没有sheetData
+		}
+	}
+
+	private static String write(XlsxDirectWriter.SheetParts parts,CellRangeAddress... mergedRegions) throws Exception {
+		StringWriter writer=new StringWriter();
+		parts.writeStart(writer);
+		parts.writeEnd(writer, Arrays.asList(mergedRegions));
+		return writer.toString();
+	}
+
+	private static void assertError(FormulaError error,Cell cell) {
+		assertEquals(Cell.CELL_TYPE_ERROR, cell.getCellType());
+		assertEquals(error.getCode(), cell.getErrorCellValue());
+	}
+}
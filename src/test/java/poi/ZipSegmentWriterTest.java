@@ -0,0 +1,151 @@
+package poi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * ZipSegmentWriter 的测试，输出结果用 ZipInputStream 和 ZipFile 读回检查(两者都校验CRC)
+ * @author xhc
+ *
+ */
+public class ZipSegmentWriterTest extends TestCase {
+
+	public void testCrc32Combine() {
+		Random random=new Random(1);
+		byte[] data=new byte[100000];
+		random.nextBytes(data);
+		int[] splits={0,1,7,4096,65535,99999,100000};
+		for(int split:splits) {
+			long crc1 = crc(data, 0, split);
+			long crc2 = crc(data, split, data.length-split);
+			assertEquals("split="+split, crc(data, 0, data.length), ZipSegmentWriter.crc32Combine(crc1, crc2, data.length-split));
+		}
+	}
+
+	public void testEntries() throws Exception {
+		Random random=new Random(2);
+		//可压缩的文本和不可压缩的随机字节
+		byte[] text=repeat("<row r=\"1\"><c r=\"A1\" t=\"inlineStr\"><is><t>数据</t></is></c></row>", 5000);
+		byte[] noise=new byte[200000];
+		random.nextBytes(noise);
+		byte[][] parts={text,new byte[0],noise,text};
+
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		ZipSegmentWriter zip=new ZipSegmentWriter(bos);
+		zip.putEntry("a.xml", text);
+		zip.putEntry("空.bin", new byte[0]);
+		List<ZipSegmentWriter.Segment> segments=new ArrayList<ZipSegmentWriter.Segment>();
+		List<ByteArrayOutputStream> compressed=new ArrayList<ByteArrayOutputStream>();
+		ByteArrayOutputStream expected=new ByteArrayOutputStream();
+		for(byte[] part:parts) {
+			ByteArrayOutputStream out=new ByteArrayOutputStream();
+			ZipSegmentWriter.Segment segment=new ZipSegmentWriter.Segment(out);
+			segment.write(part, 0, part.length);
+			segment.close();
+			assertEquals(part.length, segment.getSize());
+			segments.add(segment);
+			compressed.add(out);
+			expected.write(part);
+		}
+		zip.putSegmentedEntry("xl/worksheets/sheet1.xml", segments);
+		for(ByteArrayOutputStream out:compressed) {
+			zip.writeRaw(out.toByteArray(), 0, out.size());
+		}
+		zip.closeEntry();
+		zip.putNextEntry("b.bin");
+		zip.write(noise, 0, 100);
+		zip.write(noise, 100, noise.length-100);
+		zip.finish();
+		byte[] content = bos.toByteArray();
+
+		ZipInputStream zis=new ZipInputStream(new ByteArrayInputStream(content));
+		assertEntry(zis, "a.xml", text);
+		assertEntry(zis, "空.bin", new byte[0]);
+		assertEntry(zis, "xl/worksheets/sheet1.xml", expected.toByteArray());
+		assertEntry(zis, "b.bin", noise);
+		assertNull(zis.getNextEntry());
+
+		File file = File.createTempFile("segment", ".zip");
+		try {
+			FileOutputStream os=new FileOutputStream(file);
+			os.write(content);
+			os.close();
+			ZipFile zipFile=new ZipFile(file);
+			try {
+				assertEquals(4, zipFile.size());
+				ZipEntry entry = zipFile.getEntry("xl/worksheets/sheet1.xml");
+				assertEquals(expected.size(), entry.getSize());
+				assertEquals(crc(expected.toByteArray(), 0, expected.size()), entry.getCrc());
+				InputStream is = zipFile.getInputStream(entry);
+				assertTrue(Arrays.equals(expected.toByteArray(), readAll(is)));
+				is.close();
+			}finally {
+				zipFile.close();
+			}
+		}finally {
+			file.delete();
+		}
+	}
+
+	public void testSegmentedEntryChecksCopiedBytes() throws Exception {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		ZipSegmentWriter.Segment segment=new ZipSegmentWriter.Segment(out);
+		segment.write(repeat("abc", 100));
+		segment.close();
+		List<ZipSegmentWriter.Segment> segments=new ArrayList<ZipSegmentWriter.Segment>();
+		segments.add(segment);
+		ZipSegmentWriter zip=new ZipSegmentWriter(new ByteArrayOutputStream());
+		zip.putSegmentedEntry("a", segments);
+		zip.writeRaw(out.toByteArray(), 0, out.size()-1);
+		try {
+			zip.closeEntry();
+			fail();
+		} catch (IOException e) {
+			// 复制的字节数不同
+		}
+	}
+
+	private static void assertEntry(ZipInputStream zis,String name,byte[] expected) throws Exception {
+		ZipEntry entry = zis.getNextEntry();
+		assertEquals(name, entry.getName());
+		assertTrue(name, Arrays.equals(expected, readAll(zis)));
+	}
+
+	private static byte[] readAll(InputStream is) throws Exception {
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		byte[] buffer=new byte[8192];
+		int read;
+		while((read=is.read(buffer))!=-1) {
+			bos.write(buffer, 0, read);
+		}
+		return bos.toByteArray();
+	}
+
+	private static byte[] repeat(String text,int count) throws Exception {
+		StringBuilder builder=new StringBuilder();
+		for(int i=0;i<count;i++) {
+			builder.append(text);
+		}
+		return builder.toString().getBytes("UTF-8");
+	}
+
+	private static long crc(byte[] data,int off,int len) {
+		CRC32 crc=new CRC32();
+		crc.update(data, off, len);
+		return crc.getValue();
+	}
+}